@@ -0,0 +1,273 @@
+/**
+ * In App Billing Plugin
+ *
+ * Details and more information under:
+ * https://github.com/mohamnag/InAppBilling/wiki
+ */
+package com.mohamnag.inappbilling;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
+import com.android.vending.billing.IInAppBillingService;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Binding to the in-app billing service of play store. The binding is started
+ * as soon as the plugin is loaded, so it is usually done before JavaScript
+ * calls init, which then only waits for what is left of it.
+ *
+ * When the service disconnects, for example because play store is being
+ * updated, system normally connects it again by itself. If that does not
+ * happen, the service is bound again after a delay which grows exponentially
+ * with each attempt, with some jitter added.
+ *
+ * If a local service is given, it is connected right away instead of binding
+ * to play store.
+ */
+class BillingConnection implements ServiceConnection {
+
+    static final String BIND_ACTION = "com.android.vending.billing.InAppBillingService.BIND";
+
+    static final long RECONNECT_DELAY_MIN = 1000;
+    static final long RECONNECT_DELAY_MAX = 60 * 1000;
+
+    /**
+     * Gets notified when the service connects or disconnects, called on main
+     * thread.
+     */
+    interface Listener {
+
+        void onBillingServiceConnected(IInAppBillingService service);
+
+        void onBillingServiceDisconnected();
+    }
+
+    private final Context context;
+    private final Listener listener;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Random random = new Random();
+
+    /**
+     * Service connected instead of play store's, null normally.
+     */
+    private final IBinder localService;
+
+    private IInAppBillingService service;
+    private boolean bound = false;
+
+    /**
+     * Set once unbound on purpose, no reconnect is tried after that.
+     */
+    private boolean closed = false;
+
+    private long reconnectDelay = RECONNECT_DELAY_MIN;
+    private long disconnectedAt = -1;
+
+    private int disconnects = 0;
+    private int rebinds = 0;
+    private long lastDisconnectTime = 0;
+    private long longestDisconnectTime = 0;
+    private long totalDisconnectTime = 0;
+
+    private final Runnable reconnectTask = new Runnable() {
+
+        @Override
+        public void run() {
+            reconnect();
+        }
+
+    };
+
+    /**
+     * Whether binding has failed, in which case there is no point waiting for
+     * the service.
+     */
+    private boolean unavailable = false;
+
+    BillingConnection(Context context, Listener listener) {
+        this(context, listener, null);
+    }
+
+    BillingConnection(Context context, Listener listener, IBinder localService) {
+        this.context = context;
+        this.listener = listener;
+        this.localService = localService;
+    }
+
+    /**
+     * Starts binding to the service, returns right away.
+     *
+     * @return false if play store's billing service is not available at all
+     */
+    synchronized boolean bind() {
+        closed = false;
+
+        if (bound) {
+            return true;
+        }
+
+        if (localService != null) {
+            bound = true;
+            onServiceConnected(null, localService);
+            return true;
+        }
+
+        bound = context.bindService(new Intent(BIND_ACTION), this, Context.BIND_AUTO_CREATE);
+        unavailable = !bound;
+        notifyAll();
+
+        return bound;
+    }
+
+    synchronized void unbind() {
+        closed = true;
+        handler.removeCallbacks(reconnectTask);
+
+        if (bound && localService == null) {
+            context.unbindService(this);
+        }
+        bound = false;
+        service = null;
+    }
+
+    /**
+     * Returns the connected service, or null if it is not connected right now.
+     *
+     * @return
+     */
+    synchronized IInAppBillingService getService() {
+        return service;
+    }
+
+    /**
+     * Waits until the service is connected. This is the readiness future of
+     * the plugin, never call it on main thread as connection is reported
+     * there.
+     *
+     * @param timeout
+     * @param unit
+     * @return the service, or null if it did not connect in time or is not
+     * available
+     * @throws InterruptedException
+     */
+    synchronized IInAppBillingService await(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        while (service == null && !unavailable) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0) {
+                break;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+
+        return service;
+    }
+
+    @Override
+    public void onServiceConnected(ComponentName name, IBinder binder) {
+        IInAppBillingService connected = IInAppBillingService.Stub.asInterface(binder);
+
+        // listener first, so whoever waits finds it updated as well
+        listener.onBillingServiceConnected(connected);
+
+        synchronized (this) {
+            service = connected;
+
+            if (disconnectedAt >= 0) {
+                lastDisconnectTime = SystemClock.elapsedRealtime() - disconnectedAt;
+                longestDisconnectTime = Math.max(longestDisconnectTime, lastDisconnectTime);
+                totalDisconnectTime += lastDisconnectTime;
+                disconnectedAt = -1;
+            }
+
+            handler.removeCallbacks(reconnectTask);
+            reconnectDelay = RECONNECT_DELAY_MIN;
+
+            notifyAll();
+        }
+    }
+
+    @Override
+    public void onServiceDisconnected(ComponentName name) {
+        synchronized (this) {
+            service = null;
+            disconnects++;
+            disconnectedAt = SystemClock.elapsedRealtime();
+
+            reconnectDelay = RECONNECT_DELAY_MIN;
+            scheduleReconnect();
+        }
+
+        listener.onBillingServiceDisconnected();
+    }
+
+    /**
+     * Returns the time in milliseconds the service has been disconnected
+     * since it was last connected, 0 if it is connected.
+     *
+     * @return
+     */
+    synchronized long getDisconnectedTime() {
+        return disconnectedAt < 0 ? 0 : SystemClock.elapsedRealtime() - disconnectedAt;
+    }
+
+    /**
+     * Returns counters and timings (in milliseconds) of disconnects.
+     *
+     * @return
+     * @throws JSONException
+     */
+    synchronized JSONObject getStats() throws JSONException {
+        JSONObject ret = new JSONObject();
+        ret.put("connected", service != null);
+        ret.put("disconnects", disconnects);
+        ret.put("rebinds", rebinds);
+        ret.put("lastDisconnectTime", lastDisconnectTime);
+        ret.put("longestDisconnectTime", longestDisconnectTime);
+        ret.put("totalDisconnectTime", totalDisconnectTime);
+
+        return ret;
+    }
+
+    /**
+     * Schedules the next reconnect attempt, half of the delay is random so
+     * several apps do not all hit the service at the same moment.
+     */
+    private void scheduleReconnect() {
+        long half = reconnectDelay / 2;
+        long delay = half + (long) (random.nextDouble() * half);
+
+        handler.removeCallbacks(reconnectTask);
+        handler.postDelayed(reconnectTask, delay);
+
+        reconnectDelay = Math.min(reconnectDelay * 2, RECONNECT_DELAY_MAX);
+    }
+
+    /**
+     * Binds to the service again if it is still disconnected.
+     */
+    private synchronized void reconnect() {
+        if (closed || service != null) {
+            return;
+        }
+
+        if (bound) {
+            context.unbindService(this);
+        }
+        bound = context.bindService(new Intent(BIND_ACTION), this, Context.BIND_AUTO_CREATE);
+        rebinds++;
+
+        // check again later, in case this attempt does not connect either
+        scheduleReconnect();
+    }
+}
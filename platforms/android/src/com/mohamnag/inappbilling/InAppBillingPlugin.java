@@ -8,28 +8,57 @@ package com.mohamnag.inappbilling;
 
 import android.app.Activity;
 import android.app.PendingIntent;
-import android.content.ComponentName;
-import android.content.Context;
 import android.content.Intent;
 import android.content.IntentSender;
-import android.content.ServiceConnection;
+import android.content.pm.ApplicationInfo;
 import android.os.Bundle;
-import android.os.IBinder;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import com.android.vending.billing.IInAppBillingService;
+import com.mohamnag.inappbilling.helper.BinaryEncoder;
+import com.mohamnag.inappbilling.helper.EntitlementStore;
 import com.mohamnag.inappbilling.helper.Inventory;
+import com.mohamnag.inappbilling.helper.InventoryChanges;
 import com.mohamnag.inappbilling.helper.Purchase;
-import com.mohamnag.inappbilling.helper.Security;
+import com.mohamnag.inappbilling.helper.PurchaseJournal;
+import com.mohamnag.inappbilling.helper.PurchaseVerifier;
+import com.mohamnag.inappbilling.helper.SerializedJSONArray;
 import com.mohamnag.inappbilling.helper.SkuDetails;
+import com.mohamnag.inappbilling.helper.SkuDetailsCache;
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.cordova.CallbackContext;
+import org.apache.cordova.CordovaInterface;
 import org.apache.cordova.CordovaPlugin;
+import org.apache.cordova.CordovaWebView;
+import org.apache.cordova.PluginResult;
 import org.json.JSONArray;
 import org.json.JSONException;
+import org.json.JSONObject;
 
 public class InAppBillingPlugin extends CordovaPlugin {
 
@@ -73,6 +102,10 @@ public class InAppBillingPlugin extends CordovaPlugin {
     public static final int ERR_INVALID_PURCHASE_ID = ERROR_CODES_BASE + 23;
     // item requested to be bought is already owned
     public static final int ERR_PURCHASE_OWNED_ITEM = ERROR_CODES_BASE + 24;
+    // too many billing requests are already waiting to be processed
+    public static final int ERR_BILLING_QUEUE_FULL = ERROR_CODES_BASE + 25;
+    // billing service has disconnected and did not come back in time
+    public static final int ERR_SERVICE_DISCONNECTED = ERROR_CODES_BASE + 26;
 
     // play store response codes 
     public static final int BILLING_RESPONSE_RESULT_OK = 0;
@@ -87,10 +120,143 @@ public class InAppBillingPlugin extends CordovaPlugin {
     public static final String BILLING_ITEM_TYPE_INAPP = "inapp";
     public static final String BILLING_ITEM_TYPE_SUBS = "subs";
 
-    private boolean initialized = false;
+    /**
+     * Name of the preference (config.xml) defining how many billing requests
+     * may wait for the billing thread before new ones are rejected.
+     */
+    static final String PREF_BILLING_QUEUE_DEPTH = "android-iabplugin-queue-depth";
+    static final int DEFAULT_BILLING_QUEUE_DEPTH = 16;
+
+    /**
+     * Name of the preference (config.xml) defining after how many seconds a
+     * cached product detail is refreshed from store.
+     */
+    static final String PREF_SKU_CACHE_TTL = "android-iabplugin-sku-cache-ttl";
+    static final int DEFAULT_SKU_CACHE_TTL = 6 * 60 * 60;
+
+    /**
+     * Name of the preference (config.xml) defining how many log lines per
+     * second are passed to JavaScript at most, the rest are dropped.
+     */
+    static final String PREF_LOG_RATE_LIMIT = "android-iabplugin-log-rate-limit";
+    static final int DEFAULT_LOG_RATE_LIMIT = 100;
+
+    /**
+     * Name of the preference (config.xml) defining how many seconds requests
+     * made before init has finished wait for it.
+     */
+    static final String PREF_READY_TIMEOUT = "android-iabplugin-ready-timeout";
+    static final int DEFAULT_READY_TIMEOUT = 10;
+
+    /**
+     * Name of the preference (config.xml) defining every how many seconds
+     * purchases and product details are refreshed in background while the app
+     * is in foreground. Not set means no background refresh.
+     */
+    static final String PREF_REFRESH_INTERVAL = "android-iabplugin-refresh-interval";
+    static final int DEFAULT_REFRESH_INTERVAL = 0;
+
+    /**
+     * Name of the preference (config.xml) enabling latency histograms and
+     * error counts, which are returned by getMetrics.
+     */
+    static final String PREF_METRICS = "android-iabplugin-metrics";
+
+    /**
+     * Name of the preference (config.xml) defining every how many seconds
+     * metrics are passed to inappbilling.onMetrics in JavaScript. Not set means
+     * they are only returned by getMetrics.
+     */
+    static final String PREF_METRICS_DUMP_INTERVAL = "android-iabplugin-metrics-dump-interval";
+    static final int DEFAULT_METRICS_DUMP_INTERVAL = 0;
+
+    /**
+     * Name of the preference (config.xml) naming a fixture file in assets, if
+     * set the plugin uses a {@link FakeBillingService} loaded from it instead
+     * of play store. Only meant for testing and benchmarks, ignored unless
+     * the app is debuggable.
+     */
+    static final String PREF_FAKE_SERVICE = "android-iabplugin-fake-service";
+
+    /**
+     * Name of the preference (config.xml) defining the URL purchases are
+     * posted to for verification, see {@link RemoteVerifier}. If set, it is
+     * used instead of verifying with the licence key on device. Purchases the
+     * server could not be asked about are not granted until it answers.
+     */
+    static final String PREF_VERIFICATION_URL = "android-iabplugin-verification-url";
+
+    static final String SKU_CACHE_FILE_NAME = "inappbilling-sku-cache.json";
+    static final String PURCHASE_JOURNAL_FILE_NAME = "inappbilling-purchases.journal";
+    static final String ENTITLEMENTS_FILE_NAME = "inappbilling-entitlements.json";
+    static final String VERDICTS_FILE_NAME = "inappbilling-verdicts.json";
+
+    private volatile boolean initialized = false;
+
+    /**
+     * Tasks requested before init has finished, these are run once it has.
+     */
+    private final List<BillingTask> tasksWaitingForInit = new ArrayList<BillingTask>();
+
+    /**
+     * How long in milliseconds init waits for billing service, and other
+     * requests wait for init.
+     */
+    long readyTimeout;
+
+    Handler mainHandler;
+
+    /**
+     * Interval of background refresh in milliseconds, 0 if disabled.
+     */
+    long refreshInterval;
+
+    /**
+     * When purchases were last loaded completely, in elapsed realtime.
+     */
+    volatile long lastPurchasesRefresh;
+
+    /**
+     * Whether activity is paused, no background refresh is scheduled then.
+     */
+    private boolean paused = false;
+
+    /**
+     * Refreshes inventory in background, changes reach JavaScript through
+     * inventory watchers only.
+     */
+    private final Runnable refreshTask = new Runnable() {
+
+        @Override
+        public void run() {
+            runOnBillingThread(new BillingTask(null) {
+
+                @Override
+                boolean needsService() {
+                    return false;
+                }
+
+                @Override
+                void runBilling() throws JSONException {
+                    try {
+                        refreshInventory();
+                    }
+                    finally {
+                        mainHandler.post(new Runnable() {
 
-    //TODO: set this from JS, according to what is defined in options
-    private final Boolean ENABLE_DEBUG_LOGGING = true;
+                            @Override
+                            public void run() {
+                                scheduleRefresh(refreshInterval);
+                            }
+
+                        });
+                    }
+                }
+
+            });
+        }
+
+    };
 
     private final String TAG = "CORDOVA_INAPPBILLINGPLUGIN";
 
@@ -99,30 +265,585 @@ public class InAppBillingPlugin extends CordovaPlugin {
      */
     static int REQUEST_CODE_BASE = 10000;
 
-    IInAppBillingService iabService;
-    ServiceConnection iabServiceConnection;
+    /**
+     * Service of the task running on billing thread, read once per task from
+     * the billing connection, null if it is disconnected. The queries the task
+     * sends to query pool use it as well, so a disconnect in the middle of a
+     * task fails its calls instead of leaving them without a service.
+     */
+    IInAppBillingService billingService;
+
+    /**
+     * Binding to billing service, started as soon as plugin is loaded.
+     */
+    BillingConnection billingConnection;
+
+    /**
+     * Stand-in for play store, null unless configured.
+     */
+    FakeBillingService fakeService;
     String base64EncodedPublicKey;
+
+    /**
+     * Verifies purchases with the licence key, null if no key is set.
+     */
+    PurchaseVerifier purchaseVerifier;
+
+    /**
+     * Verifies purchases on a server, null if no verification URL is set.
+     */
+    RemoteVerifier remoteVerifier;
     boolean subscriptionSupported;
-    Map<Integer, CallbackContext> pendingPurchaseCallbacks = new HashMap<Integer, CallbackContext>();
+    Map<Integer, CallbackContext> pendingPurchaseCallbacks = Collections.synchronizedMap(new HashMap<Integer, CallbackContext>());
+    Map<Integer, String> pendingPurchaseItemTypes = Collections.synchronizedMap(new HashMap<Integer, String>());
+    Map<Integer, String> pendingPurchaseSkus = Collections.synchronizedMap(new HashMap<Integer, String>());
+
+    /**
+     * Outstanding purchases on disk, to recover the ones whose result was lost
+     * because the app was killed during purchase.
+     */
+    PurchaseJournal purchaseJournal;
+
+    /**
+     * Verified purchases of previous runs, to answer whether a product is
+     * owned before billing service is even bound.
+     */
+    EntitlementStore entitlements;
+
+    /**
+     * All the calls to billing service are made on this single thread, in the
+     * same order they were requested. This keeps the binder calls off the
+     * WebView thread and also makes sure inventory is only changed from one
+     * thread.
+     */
+    ThreadPoolExecutor billingExecutor;
+
+    /**
+     * Independent queries of one request (like the same query for different
+     * item types) are sent to billing service in parallel on this pool. Only
+     * tasks on billing thread wait for these, never the other way around.
+     */
+    ExecutorService queryExecutor;
+
+    /**
+     * Product details cache, purchase journal and entitlement store are
+     * written on this thread, one change after the other in the order they
+     * were made. Neither the WebView, UI and billing threads nor inventory's
+     * write lock wait for the disk this way.
+     */
+    ExecutorService ioExecutor;
+
+    static final int QUERY_POOL_SIZE = 4;
+
+    /**
+     * Maximum number of product IDs play store accepts in one getSkuDetails
+     * call, any ID above this is silently ignored by the store.
+     */
+    static final int SKU_DETAILS_CHUNK_SIZE = 20;
 
     /**
      * A quite up to date inventory of available items and purchase items
      */
     Inventory myInventory;
 
+    /**
+     * Receives the changes of inventory in JavaScript, null if nobody has
+     * subscribed.
+     */
+    volatile CallbackContext changeSubscriber;
+
+    /**
+     * Passes the changes of inventory to the subscriber.
+     */
+    private final Inventory.ChangeListener inventoryListener = new Inventory.ChangeListener() {
+
+        @Override
+        public void onInventoryChanged(final InventoryChanges changes) {
+            // called under inventory's write lock, disk is left to I/O thread
+            runOnIoThread(new Runnable() {
+
+                @Override
+                public void run() {
+                    if (!changes.getRemovedPurchases().isEmpty()) {
+                        // consumed or not owned anymore, nothing outstanding for these
+                        List<String> skus = new ArrayList<String>();
+                        for (Purchase purchase : changes.getRemovedPurchases()) {
+                            skus.add(purchase.getSku());
+                        }
+                        purchaseJournal.closed(skus, "removed");
+                    }
+
+                    entitlements.update(changes);
+                }
+
+            });
+
+            sendInventoryChanges(changes);
+        }
+
+    };
+
+    /**
+     * Lets identical getPurchases and loadProductDetails calls, made while one
+     * is already in flight, share its result.
+     */
+    CoalescedRequests coalescedRequests;
+
+    /**
+     * Product details of previous runs, used to answer init without waiting
+     * for the store.
+     */
+    SkuDetailsCache skuCache;
+
+    /**
+     * Passes the logs to JavaScript world, only when enabled in init options.
+     */
+    JsLogger logger;
+
+    /**
+     * Whether lists of products and purchases are sent to JavaScript encoded
+     * by {@link BinaryEncoder} instead of JSON, as requested on init.
+     */
+    volatile boolean binaryResults = false;
+
+    /**
+     * Timings and error counts, only recorded when enabled in config.xml.
+     */
+    Metrics metrics;
+
+    /**
+     * Interval of passing metrics to JavaScript in milliseconds, 0 if
+     * disabled.
+     */
+    long metricsDumpInterval;
+
+    private final Runnable metricsDumpTask = new Runnable() {
+
+        @Override
+        public void run() {
+            try {
+                webView.sendJavascript("window.inappbilling.metricsDumped(" + getAllMetrics().toString() + ");");
+            }
+            catch (JSONException ex) {
+                jsLog("JSONException: %s", ex.getMessage());
+            }
+
+            mainHandler.postDelayed(this, metricsDumpInterval);
+        }
+
+    };
+
     /**
      * This is a bridge to the log function in JavaScript world. We pass the
-     * logs there for an easier debug for end developers.
-     *
-     * This is prone to XSS attacks! current workaround: turn off logs in
-     * production
+     * logs there for an easier debug for end developers. Message is formatted
+     * with the arguments only if logging is enabled, so pass the values as
+     * arguments instead of concatenating them.
      *
-     * @param msg
+     * @param format
+     * @param args
      */
-    private void jsLog(String msg) {
+    private void jsLog(String format, Object... args) {
         // transfer all the logs back to JS for a better visibility. ~> window.inappbilling.log()
-        String js = String.format("window.inappbilling.log('%s');", "[android] " + msg);
-        webView.sendJavascript(js);
+        logger.log(format, args);
+    }
+
+    @Override
+    public void initialize(CordovaInterface cordova, CordovaWebView webView) {
+        super.initialize(cordova, webView);
+
+        int queueDepth = getIntPreference(PREF_BILLING_QUEUE_DEPTH, DEFAULT_BILLING_QUEUE_DEPTH);
+
+        logger = new JsLogger(webView, getIntPreference(PREF_LOG_RATE_LIMIT, DEFAULT_LOG_RATE_LIMIT));
+        coalescedRequests = new CoalescedRequests(webView);
+
+        mainHandler = new Handler(Looper.getMainLooper());
+        readyTimeout = getIntPreference(PREF_READY_TIMEOUT, DEFAULT_READY_TIMEOUT) * 1000L;
+        refreshInterval = getIntPreference(PREF_REFRESH_INTERVAL, DEFAULT_REFRESH_INTERVAL) * 1000L;
+
+        metrics = new Metrics(webView, getBooleanPreference(PREF_METRICS));
+        metricsDumpInterval = metrics.isEnabled()
+                ? getIntPreference(PREF_METRICS_DUMP_INTERVAL, DEFAULT_METRICS_DUMP_INTERVAL) * 1000L
+                : 0;
+        scheduleMetricsDump();
+
+        String verificationUrl = cordova.getActivity().getIntent().getStringExtra(PREF_VERIFICATION_URL);
+        if (verificationUrl != null) {
+            try {
+                remoteVerifier = new RemoteVerifier(
+                        new URL(verificationUrl),
+                        new File(cordova.getActivity().getFilesDir(), VERDICTS_FILE_NAME)
+                );
+            }
+            catch (MalformedURLException ex) {
+                // fall back to licence key
+                Logger.getLogger(InAppBillingPlugin.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+
+        purchaseJournal = new PurchaseJournal(new File(cordova.getActivity().getFilesDir(), PURCHASE_JOURNAL_FILE_NAME));
+
+        ioExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "InAppBillingPlugin-io");
+            }
+
+        });
+
+        // read in background, it is usually done before the first check
+        entitlements = createEntitlementStore();
+        runOnIoThread(new Runnable() {
+
+            @Override
+            public void run() {
+                entitlements.preload();
+            }
+
+        });
+
+        skuCache = new SkuDetailsCache(
+                new File(cordova.getActivity().getFilesDir(), SKU_CACHE_FILE_NAME),
+                cordova.getActivity().getPackageName(),
+                Locale.getDefault(),
+                getIntPreference(PREF_SKU_CACHE_TTL, DEFAULT_SKU_CACHE_TTL) * 1000L
+        );
+
+        billingExecutor = new ThreadPoolExecutor(
+                1,
+                1,
+                0L,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueDepth),
+                new ThreadFactory() {
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "InAppBillingPlugin-billing");
+                    }
+
+                }
+        );
+
+        queryExecutor = Executors.newFixedThreadPool(QUERY_POOL_SIZE, new ThreadFactory() {
+
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "InAppBillingPlugin-query-" + count.incrementAndGet());
+            }
+
+        });
+
+        String fixture = cordova.getActivity().getIntent().getStringExtra(PREF_FAKE_SERVICE);
+        if (fixture != null && !isDebuggable()) {
+            // never replace play store in a release build
+            Logger.getLogger(InAppBillingPlugin.class.getName()).log(Level.WARNING, "{0} ignored, app is not debuggable", PREF_FAKE_SERVICE);
+        }
+        else if (fixture != null) {
+            try {
+                fakeService = FakeBillingService.fromStream(cordova.getActivity().getAssets().open(fixture));
+
+                Logger.getLogger(InAppBillingPlugin.class.getName()).log(Level.SEVERE, "FAKE BILLING SERVICE ACTIVE, purchases are not real (fixture {0})", fixture);
+                jsLog("FAKE BILLING SERVICE ACTIVE, purchases are not real (fixture %s)", fixture);
+            }
+            catch (Exception ex) {
+                // fall back to play store
+                Logger.getLogger(InAppBillingPlugin.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+
+        // start binding right away, so init finds the service connected
+        billingConnection = new BillingConnection(
+                cordova.getActivity().getApplicationContext(),
+                new BillingConnection.Listener() {
+
+                    @Override
+                    public void onBillingServiceConnected(IInAppBillingService service) {
+                        if (logger.isEnabled()) {
+                            jsLog("Service connected, connection stats: %s", getConnectionStats());
+                        }
+                    }
+
+                    @Override
+                    public void onBillingServiceDisconnected() {
+                        // requests wait on billing thread until it reconnects
+                        jsLog("Service disconnected");
+                    }
+
+                },
+                fakeService
+        );
+        billingConnection.bind();
+    }
+
+    /**
+     * Opens the entitlement store, whose entries are verified with the licence
+     * key when read back. If the key is set but broken, nothing stored can be
+     * trusted and the store starts empty.
+     *
+     * @return
+     */
+    private EntitlementStore createEntitlementStore() {
+        File file = new File(cordova.getActivity().getFilesDir(), ENTITLEMENTS_FILE_NAME);
+        String licenceKey = cordova.getActivity().getIntent().getStringExtra("android-iabplugin-license-key");
+        if (licenceKey == null) {
+            return new EntitlementStore(file);
+        }
+
+        try {
+            return new EntitlementStore(file, new PurchaseVerifier(licenceKey));
+        }
+        catch (IllegalArgumentException ex) {
+            Logger.getLogger(InAppBillingPlugin.class.getName()).log(Level.SEVERE, null, ex);
+            file.delete();
+            return new EntitlementStore(file);
+        }
+    }
+
+    /**
+     * Replaces the entitlements of an item type with the full list of its
+     * owned items just loaded, on I/O thread.
+     *
+     * @param itemType
+     * @param purchases
+     */
+    private void replaceEntitlements(final String itemType, final List<Purchase> purchases) {
+        runOnIoThread(new Runnable() {
+
+            @Override
+            public void run() {
+                entitlements.replace(itemType, purchases);
+            }
+
+        });
+    }
+
+    /**
+     * Result of one query made to billing service on query pool. Items are
+     * merged into inventory on billing thread once all queries are done.
+     */
+    static class QueryResult<T> {
+
+        final String itemType;
+        final List<T> items = new ArrayList<T>();
+        Error error;
+
+        QueryResult(String itemType) {
+            this.itemType = itemType;
+        }
+
+        static <T> QueryResult<T> failed(Error error) {
+            QueryResult<T> ret = new QueryResult<T>(null);
+            ret.error = error;
+            return ret;
+        }
+    }
+
+    /**
+     * Reads an integer preference which cordova has passed to activity's
+     * intent from config.xml, falls back to default if it is not set or is
+     * not a valid number.
+     *
+     * @param name
+     * @param defaultValue
+     * @return
+     */
+    private int getIntPreference(String name, int defaultValue) {
+        String value = cordova.getActivity().getIntent().getStringExtra(name);
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            int ret = Integer.parseInt(value.trim());
+            return ret > 0 ? ret : defaultValue;
+        }
+        catch (NumberFormatException ex) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Reads a boolean preference which cordova has passed to activity's
+     * intent from config.xml, false if it is not set.
+     *
+     * @param name
+     * @return
+     */
+    private boolean getBooleanPreference(String name) {
+        Intent intent = cordova.getActivity().getIntent();
+        return intent.getBooleanExtra(name, false) || "true".equalsIgnoreCase(intent.getStringExtra(name));
+    }
+
+    /**
+     * A unit of work to be run on billing thread. Any JSONException thrown
+     * while running will be reported back to the callback, or only logged if
+     * the task has no callback.
+     */
+    private abstract class BillingTask implements Runnable {
+
+        final CallbackContext callbackContext;
+
+        BillingTask(CallbackContext callbackContext) {
+            this.callbackContext = callbackContext;
+        }
+
+        abstract void runBilling() throws JSONException;
+
+        /**
+         * Whether this task calls billing service. Such a task waits for the
+         * service to reconnect if it is disconnected, so the requests queued
+         * meanwhile are run in order once it is back, or fail together if it
+         * does not come back in time.
+         */
+        boolean needsService() {
+            return true;
+        }
+
+        @Override
+        public void run() {
+            try {
+                billingService = metrics.meter(needsService() ? awaitService() : billingConnection.getService());
+
+                if (needsService() && billingService == null) {
+                    fail(serviceDisconnected());
+                    // waited once for all of them
+                    failQueuedTasks();
+                    return;
+                }
+
+                runBilling();
+            }
+            catch (JSONException ex) {
+                fail(new Error(
+                        ERR_JSON_CONVERSION_FAILED,
+                        ex.getMessage()
+                ));
+            }
+            catch (RuntimeException ex) {
+                // always answer, calls which joined this one wait for it too
+                Logger.getLogger(InAppBillingPlugin.class.getName()).log(Level.SEVERE, null, ex);
+                fail(new Error(
+                        ERR_UNKNOWN,
+                        ex.toString()
+                ));
+            }
+        }
+
+        private void fail(Error error) {
+            if (callbackContext == null) {
+                jsLog("Background task failed: %s", error.getMessage());
+                return;
+            }
+
+            callbackContext.error(error.toJavaScriptJSON());
+        }
+    }
+
+    /**
+     * Waits for billing service if it is disconnected, not longer than the
+     * ready timeout. Runs on billing thread.
+     *
+     * @return the service, or null if it did not connect in time
+     */
+    private IInAppBillingService awaitService() {
+        IInAppBillingService service = billingConnection.getService();
+        if (service != null) {
+            return service;
+        }
+
+        jsLog("Waiting for billing service to reconnect");
+        try {
+            return billingConnection.await(readyTimeout, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Called when a task has waited for the service in vain. The tasks queued
+     * behind it which need the service fail right away, instead of each one
+     * waiting the whole ready timeout again, the other ones are run in their
+     * order. Runs on billing thread.
+     */
+    private void failQueuedTasks() {
+        List<Runnable> queued = new ArrayList<Runnable>();
+        billingExecutor.getQueue().drainTo(queued);
+
+        for (Runnable runnable : queued) {
+            if (runnable instanceof BillingTask
+                    && ((BillingTask) runnable).needsService()
+                    && billingConnection.getService() == null) {
+                ((BillingTask) runnable).fail(serviceDisconnected());
+            }
+            else {
+                runnable.run();
+            }
+        }
+    }
+
+    private Error serviceDisconnected() {
+        return new Error(
+                ERR_SERVICE_DISCONNECTED,
+                "Billing service is disconnected."
+        );
+    }
+
+    private String getConnectionStats() {
+        try {
+            return billingConnection.getStats().toString();
+        }
+        catch (JSONException ex) {
+            return ex.getMessage();
+        }
+    }
+
+    /**
+     * Queues a task on the billing thread. If the queue is already full, the
+     * task is rejected and its callback receives an error right away.
+     *
+     * @param task
+     */
+    private void runOnBillingThread(BillingTask task) {
+        try {
+            billingExecutor.execute(task);
+        }
+        catch (RejectedExecutionException ex) {
+            task.fail(new Error(
+                    ERR_BILLING_QUEUE_FULL,
+                    "Too many billing requests are pending, try again later."
+            ));
+        }
+    }
+
+    /**
+     * @return true if the app is built debuggable, test only features are
+     * ignored otherwise
+     */
+    private boolean isDebuggable() {
+        return (cordova.getActivity().getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0;
+    }
+
+    /**
+     * Queues a write on the I/O thread. Once the plugin is destroyed the write
+     * is dropped, journal is reconciled with the store on next start.
+     *
+     * @param write
+     * @return false if the write was dropped
+     */
+    private boolean runOnIoThread(Runnable write) {
+        try {
+            ioExecutor.execute(write);
+            return true;
+        }
+        catch (RejectedExecutionException ex) {
+            Logger.getLogger(InAppBillingPlugin.class.getName()).log(Level.WARNING, "I/O thread is shut down, write dropped", ex);
+            return false;
+        }
     }
 
     @Override
@@ -130,8 +851,11 @@ public class InAppBillingPlugin extends CordovaPlugin {
      * Called from JavaScript and dispatches the requests further to proper
      * functions.
      */
-    public boolean execute(String action, JSONArray data, final CallbackContext callbackContext) throws JSONException {
-        jsLog("execute called for action: " + action + " data: " + data);
+    public boolean execute(String action, JSONArray data, CallbackContext callback) throws JSONException {
+        jsLog("execute called for action: %s data: %s", action, data);
+
+        // a watcher is answered until it unwatches, no latency to record
+        final CallbackContext callbackContext = "watchInventory".equals(action) ? callback : metrics.meter(action, callback);
 
         // Check if the action has a handler
         Boolean isValidAction = true;
@@ -140,46 +864,158 @@ public class InAppBillingPlugin extends CordovaPlugin {
         if ("init".equals(action)) {
             ArrayList<String> productIds = null;
             boolean debugEnabled = false;
-            if (data.length() > 0) {
-                productIds = jsonStringToList(data.getString(0));
-            }
             if (data.length() > 1) {
                 debugEnabled = data.getBoolean(1);
             }
 
-            init(productIds, debugEnabled, callbackContext);
+            // apply log option first, so parsing the arguments is logged too
+            logger.setEnabled(debugEnabled);
+
+            binaryResults = data.length() > 2 && data.getBoolean(2);
+
+            if (data.length() > 0) {
+                productIds = jsonStringToList(data.getString(0));
+            }
+
+            init(productIds, callbackContext);
         } // Get the list of purchases
         else if ("getPurchases".equals(action) || "restoreCompletedTransactions".equals(action)) {
-            if (isReady(callbackContext)) {
-                getPurchases(callbackContext);
+            // both actions load the same purchases, one load serves them all
+            final CallbackContext sharedCallback = coalescedRequests.join(action, "getPurchases", callbackContext);
+            if (sharedCallback != null) {
+                runWhenReady(new BillingTask(sharedCallback) {
+
+                    @Override
+                    void runBilling() throws JSONException {
+                        getPurchases(sharedCallback);
+                    }
+
+                });
+            }
+            else if (logger.isEnabled()) {
+                jsLog("Joined getPurchases already in flight, saved calls: %s", coalescedRequests.getStats());
             }
         } // Buy an item
         else if ("buy".equals(action)) {
-            if (isReady(callbackContext)) {
-                buy(data.getString(0), callbackContext);
-            }
+            final String productId = data.getString(0);
+            runWhenReady(new BillingTask(callbackContext) {
+
+                @Override
+                void runBilling() throws JSONException {
+                    buy(productId, callbackContext);
+                }
+
+            });
 
         } // consume an owned item
         else if ("consumeProduct".equals(action)) {
-            if (isReady(callbackContext)) {
-                consumeProduct(data.getString(0), callbackContext);
-            }
+            final String productId = data.getString(0);
+            runWhenReady(new BillingTask(callbackContext) {
+
+                @Override
+                void runBilling() throws JSONException {
+                    consumeProduct(productId, callbackContext);
+                }
+
+            });
+
+        } // consume several owned items at once
+        else if ("consumeProducts".equals(action)) {
+            final ArrayList<String> productIds = jsonStringToList(data.getString(0));
+            runWhenReady(new BillingTask(callbackContext) {
+
+                @Override
+                void runBilling() throws JSONException {
+                    consumeProducts(productIds, callbackContext);
+                }
+
+            });
 
         } // Get the list of loaded products
         else if ("getLoadedProducts".equals(action)) {
-            if (isReady(callbackContext)) {
-                getLoadedProducts(callbackContext);
-            }
+            runWhenReady(new BillingTask(callbackContext) {
+
+                @Override
+                boolean needsService() {
+                    return false;
+                }
+
+                @Override
+                void runBilling() throws JSONException {
+                    getLoadedProducts(callbackContext);
+                }
+
+            });
         } // Get details of a loaded product
         else if ("loadProductDetails".equals(action)) {
-            if (isReady(callbackContext)) {
-                loadProductDetails(jsonStringToList(data.getString(0)), callbackContext);
+            final ArrayList<String> productIds = jsonStringToList(data.getString(0));
+            final CallbackContext sharedCallback = coalescedRequests.join(action, "loadProductDetails:" + requestKey(productIds), callbackContext);
+            if (sharedCallback != null) {
+                runWhenReady(new BillingTask(sharedCallback) {
+
+                    @Override
+                    void runBilling() throws JSONException {
+                        loadProductDetails(productIds, sharedCallback);
+                    }
+
+                });
+            }
+            else if (logger.isEnabled()) {
+                jsLog("Joined loadProductDetails already in flight, saved calls: %s", coalescedRequests.getStats());
             }
         } // Get verification payload for a puchase
         else if ("getPurchaseDetails".equals(action)) {
-            if (isReady(callbackContext)) {
-                getPurchaseDetails(data.getString(0), callbackContext);
-            }
+            final String purchaseId = data.getString(0);
+            runWhenReady(new BillingTask(callbackContext) {
+
+                @Override
+                boolean needsService() {
+                    return false;
+                }
+
+                @Override
+                void runBilling() throws JSONException {
+                    getPurchaseDetails(purchaseId, callbackContext);
+                }
+
+            });
+        } // Check a product against owned purchases, does not wait for init
+        else if ("isOwned".equals(action)) {
+            final String productId = data.getString(0);
+            cordova.getThreadPool().execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    isOwned(productId, callbackContext);
+                }
+
+            });
+        } // Get owned purchases, does not wait for init
+        else if ("getEntitlements".equals(action)) {
+            cordova.getThreadPool().execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    getEntitlements(callbackContext);
+                }
+
+            });
+        } // Get timings and counters
+        else if ("getMetrics".equals(action)) {
+            cordova.getThreadPool().execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    getMetrics(callbackContext);
+                }
+
+            });
+        } // Get the changes of inventory as they happen
+        else if ("watchInventory".equals(action)) {
+            watchInventory(callbackContext);
+        } // Stop getting the changes of inventory
+        else if ("unwatchInventory".equals(action)) {
+            unwatchInventory(callbackContext);
         } // No handler for the action
         else {
 
@@ -190,6 +1026,24 @@ public class InAppBillingPlugin extends CordovaPlugin {
         return isValidAction;
     }
 
+    /**
+     * Builds a key which is equal for lists of the same IDs, regardless of
+     * their order or duplicates.
+     *
+     * @param ids
+     * @return
+     */
+    private static String requestKey(List<String> ids) {
+        TreeSet<String> sorted = new TreeSet<String>(ids);
+        StringBuilder key = new StringBuilder();
+        for (String id : sorted) {
+            // JSON quoted, so no ID can fake a separator
+            key.append(JSONObject.quote(id)).append(',');
+        }
+
+        return key.toString();
+    }
+
     /**
      * Helper to convert JSON string to a List<String>
      *
@@ -202,11 +1056,11 @@ public class InAppBillingPlugin extends CordovaPlugin {
         ArrayList<String> sku = new ArrayList<String>();
         int len = jsonSkuList.length();
 
-        jsLog("Num SKUs Found: " + len);
+        jsLog("Num SKUs Found: %d", len);
 
         for (int i = 0; i < len; i++) {
             sku.add(jsonSkuList.get(i).toString());
-            jsLog("Product SKU Added: " + jsonSkuList.get(i).toString());
+            jsLog("Product SKU Added: %s", sku.get(i));
         }
 
         return sku;
@@ -225,94 +1079,385 @@ public class InAppBillingPlugin extends CordovaPlugin {
      * @param productIds
      * @param callbackContext
      */
-    private void init(final ArrayList<String> productIds, boolean debugEnabled, final CallbackContext callbackContext) {
+    private void init(final ArrayList<String> productIds, final CallbackContext callbackContext) {
 
-        jsLog("init called with productIds: " + productIds);
+        jsLog("init called with productIds: %s", productIds);
 
         subscriptionSupported = false;
         initialized = false;
 
         // retrieve licence key, if this is not set, we will skip validations later
         base64EncodedPublicKey = cordova.getActivity().getIntent().getStringExtra("android-iabplugin-license-key");
+        purchaseVerifier = null;
+        if (base64EncodedPublicKey != null) {
+            try {
+                // decode the key once here instead of for every purchase
+                purchaseVerifier = new PurchaseVerifier(base64EncodedPublicKey);
+            }
+            catch (IllegalArgumentException ex) {
+                Error error = new Error(
+                        ERR_SETUP,
+                        "Invalid licence key: " + ex.getMessage()
+                );
+                callbackContext.error(error.toJavaScriptJSON());
+                finishInit(error);
+                return;
+            }
+        }
+
+        // binding has been started when plugin was loaded, wait only for what is left of it
+        runOnBillingThread(new BillingTask(callbackContext) {
+
+            @Override
+            boolean needsService() {
+                // waits for the service itself, to report setup errors
+                return false;
+            }
+
+            @Override
+            void runBilling() throws JSONException {
+                Error error = setUpBilling();
+                if (error != null) {
+                    callbackContext.error(error.toJavaScriptJSON());
+                    finishInit(error);
+                    return;
+                }
+
+                myInventory = new Inventory(base64EncodedPublicKey);
+                // a subscriber gets a reset with the new, empty inventory
+                myInventory.setChangeListener(inventoryListener);
+                finishInit(null);
+
+                // purchases known from journal need no query
+                boolean unknownResults = restoreJournaledPurchases();
+
+                // Now, let's pupulate inventory with products
+                loadCachedProductDetails(productIds, callbackContext);
+
+                if (unknownResults) {
+                    reconcileJournaledPurchases();
+                }
+            }
+
+        });
+    }
+
+    /**
+     * Verifies purchases on server if a verification URL is set, otherwise
+     * with licence key on device. The ones server could not be asked about
+     * are not verified, they must not be granted. Call it off main thread.
+     *
+     * @param signedData
+     * @param signatures signature of each item in signedData
+     * @return verification result of each item in signedData, null for the
+     * ones server could not be asked about; null if there is nothing to verify
+     * with
+     */
+    private Boolean[] verifyPurchases(List<String> signedData, List<String> signatures) {
+        if (remoteVerifier != null) {
+            Boolean[] verdicts = remoteVerifier.verify(signedData, signatures);
+
+            int unanswered = 0;
+            for (Boolean verdict : verdicts) {
+                if (verdict == null) {
+                    unanswered++;
+                }
+            }
+            if (unanswered > 0) {
+                jsLog("Verification server did not answer for %d purchases, they are not granted", unanswered);
+            }
+
+            return verdicts;
+        }
+
+        if (purchaseVerifier == null) {
+            return null;
+        }
+
+        boolean[] verified = purchaseVerifier.verify(signedData, signatures, cordova.getThreadPool());
+        Boolean[] ret = new Boolean[verified.length];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = verified[i];
+        }
+        return ret;
+    }
+
+    /**
+     * @param signedData
+     * @param signature
+     * @return verification result, null if server could not be asked about it
+     */
+    private Boolean verifyPurchase(String signedData, String signature) {
+        Boolean[] ret = verifyPurchases(Collections.singletonList(signedData), Collections.singletonList(signature));
+        return ret != null ? ret[0] : Boolean.TRUE;
+    }
+
+    /**
+     * Adds the completed purchases found in journal to inventory. Runs on
+     * billing thread.
+     *
+     * @return whether there are purchases whose result is unknown
+     */
+    private boolean restoreJournaledPurchases() {
+        boolean unknownResults = false;
+        List<Purchase> restored = new ArrayList<Purchase>();
+
+        for (PurchaseJournal.Entry entry : purchaseJournal.getOutstanding()) {
+            if (!entry.isCompleted()) {
+                unknownResults = true;
+                continue;
+            }
+
+            try {
+                Purchase purchase = entry.toPurchase();
+                Boolean verified = verifyPurchase(purchase.getOriginalJson(), purchase.getSignature());
+                if (verified == null) {
+                    // stays in journal, checked again on next start
+                    continue;
+                }
+
+                if (verified) {
+                    restored.add(purchase);
+                }
+                else {
+                    closeInJournal(entry.getSku(), "invalid");
+                }
+            }
+            catch (JSONException ex) {
+                closeInJournal(entry.getSku(), "invalid");
+            }
+        }
+
+        jsLog("Restored purchases from journal: %d", restored.size());
+        myInventory.addPurchases(restored);
+
+        return unknownResults;
+    }
+
+    /**
+     * Finds out the results of purchases which were initiated but never
+     * answered, by asking billing service only for owned items of their types.
+     * Runs after init has answered, the found purchases reach JavaScript as
+     * inventory changes.
+     */
+    private void reconcileJournaledPurchases() {
+        runOnBillingThread(new BillingTask(null) {
+
+            @Override
+            void runBilling() throws JSONException {
+                Map<String, List<String>> unknownByType = new HashMap<String, List<String>>();
+                for (PurchaseJournal.Entry entry : purchaseJournal.getOutstanding()) {
+                    if (!entry.isCompleted()) {
+                        List<String> skus = unknownByType.get(entry.getItemType());
+                        if (skus == null) {
+                            skus = new ArrayList<String>();
+                            unknownByType.put(entry.getItemType(), skus);
+                        }
+                        skus.add(entry.getSku());
+                    }
+                }
+
+                for (Map.Entry<String, List<String>> unknown : unknownByType.entrySet()) {
+                    jsLog("Reconciling purchases: %s", unknown.getValue());
+
+                    QueryResult<Purchase> result = queryPurchases(unknown.getKey(), null);
+                    if (result.error != null) {
+                        // try again on next start
+                        jsLog("Reconciling purchases failed: %s", result.error.getMessage());
+                        continue;
+                    }
 
-        // prepare and bind to iab service
-        iabServiceConnection = new ServiceConnection() {
+                    myInventory.replacePurchases(unknown.getKey(), result.items);
+                    replaceEntitlements(unknown.getKey(), result.items);
+
+                    for (String sku : unknown.getValue()) {
+                        Purchase purchase = myInventory.getPurchase(sku);
+                        if (purchase != null) {
+                            completeInJournal(purchase);
+                        }
+                        else {
+                            closeInJournal(sku, "not purchased");
+                        }
+                    }
+                }
+            }
+
+        });
+    }
+
+    /**
+     * Waits for billing service to be connected and checks what it supports.
+     * Runs on billing thread.
+     *
+     * @return null if billing can be used, otherwise the reason why not
+     */
+    private Error setUpBilling() {
+        // no-op if already bound, retries if binding has failed on load
+        billingConnection.bind();
+
+        try {
+            IInAppBillingService service = metrics.meter(billingConnection.await(readyTimeout, TimeUnit.MILLISECONDS));
+            if (service == null) {
+                return new Error(
+                        ERR_SETUP,
+                        "Billing service is not available."
+                );
+            }
+
+            billingService = service;
+
+            jsLog("check for in-app billing v3 support");
+            int response = service.isBillingSupported(3, cordova.getActivity().getPackageName(), BILLING_ITEM_TYPE_INAPP);
+            if (response != BILLING_RESPONSE_RESULT_OK) {
+                return new Error(
+                        ERR_SETUP,
+                        "Billing v3 not supported. Response code: " + response
+                );
+            }
+
+            // subs may be disabled independent from v3 interface
+            jsLog("check for v3 subscriptions support");
+            response = service.isBillingSupported(3, cordova.getActivity().getPackageName(), BILLING_ITEM_TYPE_SUBS);
+            subscriptionSupported = response == BILLING_RESPONSE_RESULT_OK;
+
+            return null;
+        }
+        catch (RemoteException ex) {
+            Logger.getLogger(InAppBillingPlugin.class.getName()).log(Level.SEVERE, null, ex);
+            return new Error(
+                    ERR_SETUP,
+                    ex.getMessage()
+            );
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return new Error(
+                    ERR_SETUP,
+                    "Interrupted while waiting for billing service."
+            );
+        }
+    }
+
+    /**
+     * Runs the task on billing thread once the plug-in is initialized. Tasks
+     * requested before that wait for init to finish, instead of failing right
+     * away, but not longer than the ready timeout.
+     *
+     * @param task
+     */
+    private void runWhenReady(final BillingTask task) {
+        synchronized (tasksWaitingForInit) {
+            if (!initialized) {
+                tasksWaitingForInit.add(task);
+
+                mainHandler.postDelayed(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        boolean waiting;
+                        synchronized (tasksWaitingForInit) {
+                            waiting = tasksWaitingForInit.remove(task);
+                        }
+
+                        if (waiting) {
+                            task.callbackContext.error(new Error(
+                                    ERR_NOT_INITIALIZED,
+                                    "Plugin has not been initialized."
+                            ).toJavaScriptJSON());
+                        }
+                    }
 
-            @Override
-            public void onServiceDisconnected(ComponentName name) {
-                jsLog("Service disconnected");
-                iabService = null;
+                }, readyTimeout);
+                return;
             }
+        }
 
-            @Override
-            public void onServiceConnected(ComponentName name, IBinder service) {
-                jsLog("Service connected");
-                iabService = IInAppBillingService.Stub.asInterface(service);
+        runOnBillingThread(task);
+    }
 
-                try {
-                    jsLog("check for in-app billing v3 support");
-                    int response = iabService.isBillingSupported(3, cordova.getActivity().getPackageName(), BILLING_ITEM_TYPE_INAPP);
-                    if (response != BILLING_RESPONSE_RESULT_OK) {
-                        callbackContext.error(new Error(
-                                ERR_SETUP,
-                                "Billing v3 not supported. Response code: " + response
-                        ).toJavaScriptJSON());
-                    }
-                    else {
-                        // subs may be disabled independent from v3 interface
-                        jsLog("check for v3 subscriptions support");
-                        response = iabService.isBillingSupported(3, cordova.getActivity().getPackageName(), BILLING_ITEM_TYPE_SUBS);
-                        subscriptionSupported = response == BILLING_RESPONSE_RESULT_OK;
+    /**
+     * Marks the end of init and lets the tasks which were waiting for it run,
+     * or fail with the same error as init did.
+     *
+     * @param error null if init was successful
+     */
+    private void finishInit(Error error) {
+        List<BillingTask> waiting;
+        synchronized (tasksWaitingForInit) {
+            initialized = error == null;
+            waiting = new ArrayList<BillingTask>(tasksWaitingForInit);
+            tasksWaitingForInit.clear();
+        }
+
+        for (BillingTask task : waiting) {
+            if (error == null) {
+                runOnBillingThread(task);
+            }
+            else {
+                task.callbackContext.error(error.toJavaScriptJSON());
+            }
+        }
 
-                        myInventory = new Inventory(base64EncodedPublicKey);
-                        initialized = true;
+        if (error == null) {
+            mainHandler.post(new Runnable() {
 
-                        // Now, let's pupulate inventory with products
-                        loadProductDetails(productIds, callbackContext);
-                    }
-                }
-                catch (JSONException ex) {
-                    callbackContext.error(new Error(
-                            ERR_JSON_CONVERSION_FAILED,
-                            ex.getMessage()
-                    ).toJavaScriptJSON());
-                }
-                catch (RemoteException ex) {
-                    Logger.getLogger(InAppBillingPlugin.class.getName()).log(Level.SEVERE, null, ex);
-                    callbackContext.error(new Error(
-                            ERR_SETUP,
-                            ex.getMessage()
-                    ).toJavaScriptJSON());
+                @Override
+                public void run() {
+                    scheduleRefresh(refreshInterval);
                 }
 
-            }
+            });
+        }
+    }
 
-        };
+    /**
+     * Schedules the next background refresh, replacing the one scheduled
+     * before. Call on main thread.
+     *
+     * @param delay in milliseconds
+     */
+    private void scheduleRefresh(long delay) {
+        mainHandler.removeCallbacks(refreshTask);
 
-        cordova.getActivity().getApplicationContext().bindService(
-                new Intent("com.android.vending.billing.InAppBillingService.BIND"),
-                iabServiceConnection,
-                Context.BIND_AUTO_CREATE
-        );
+        if (refreshInterval > 0 && initialized && !paused) {
+            mainHandler.postDelayed(refreshTask, Math.max(0, delay));
+        }
     }
 
     /**
-     * Checks for correct initialization of plug-in and the case where helper is
-     * disposed in mean time.
-     *
-     * @param result
+     * Reloads what may have changed since it was last loaded: purchases if
+     * they were not loaded within the refresh interval and product details
+     * which are stale in cache. Nothing is done while a purchase is in
+     * progress, as its result updates inventory anyway, or while billing
+     * service is disconnected. Runs on billing thread.
      */
-    private boolean isReady(CallbackContext callbackContext) throws JSONException {
-        if (!initialized) {
-            callbackContext.error(new Error(
-                    ERR_NOT_INITIALIZED,
-                    "Plugin has not been initialized."
-            ).toJavaScriptJSON());
+    private void refreshInventory() {
+        if (!initialized || !pendingPurchaseCallbacks.isEmpty() || billingService == null) {
+            jsLog("Background refresh skipped.");
+            return;
+        }
 
-            return false;
+        if (SystemClock.elapsedRealtime() - lastPurchasesRefresh >= refreshInterval) {
+            jsLog("Background refresh of purchases.");
+            Error error = loadAllPurchases(null);
+            if (error != null) {
+                jsLog("Background refresh of purchases failed: %s", error.getMessage());
+            }
         }
-        else {
-            return true;
+
+        ArrayList<String> staleIds = new ArrayList<String>();
+        for (SkuDetails details : myInventory.getAllProducts()) {
+            if (!skuCache.isFresh(details.getSku())) {
+                staleIds.add(details.getSku());
+            }
+        }
+
+        if (!staleIds.isEmpty()) {
+            jsLog("Background refresh of product details: %s", staleIds);
+            Error error = fetchProductDetails(staleIds);
+            if (error != null) {
+                jsLog("Background refresh of product details failed: %s", error.getMessage());
+            }
         }
     }
 
@@ -324,7 +1469,7 @@ public class InAppBillingPlugin extends CordovaPlugin {
      */
     private void buy(final String productId, final CallbackContext callbackContext) throws JSONException {
 
-        jsLog("buy called for productId: " + productId);
+        jsLog("buy called for productId: %s", productId);
 
         SkuDetails product = myInventory.getSkuDetails(productId);
         if (product == null) {
@@ -339,14 +1484,16 @@ public class InAppBillingPlugin extends CordovaPlugin {
                     "Subscriptions are not supported"
             ).toJavaScriptJSON());
         }
+        else if (billingService == null) {
+            callbackContext.error(serviceDisconnected().toJavaScriptJSON());
+        }
         else {
-            cordova.setActivityResultCallback(this);
             int requestCode = REQUEST_CODE_BASE++;
 
             try {
                 jsLog("Preparing purchase flow");
 
-                Bundle buyIntentBundle = iabService.getBuyIntent(
+                Bundle buyIntentBundle = billingService.getBuyIntent(
                         3,
                         cordova.getActivity().getPackageName(),
                         product.getSku(),
@@ -356,20 +1503,37 @@ public class InAppBillingPlugin extends CordovaPlugin {
 
                 int response = buyIntentBundle.getInt("RESPONSE_CODE");
                 if (response == BILLING_RESPONSE_RESULT_OK) {
-                    PendingIntent pendingIntent = buyIntentBundle.getParcelable("BUY_INTENT");
+                    final PendingIntent pendingIntent = buyIntentBundle.getParcelable("BUY_INTENT");
+                    final String sku = product.getSku();
+                    final String itemType = product.getType();
+                    final int purchaseRequestCode = requestCode;
 
+                    pendingPurchaseItemTypes.put(requestCode, itemType);
+                    pendingPurchaseSkus.put(requestCode, sku);
                     pendingPurchaseCallbacks.put(requestCode, callbackContext);
 
-                    cordova.getActivity().startIntentSenderForResult(
-                            pendingIntent.getIntentSender(),
-                            requestCode,
-                            new Intent(),
-                            0,
-                            0,
-                            0
-                    );
+                    boolean queued = runOnIoThread(new Runnable() {
 
-                    jsLog("Purchase flow launched successfully");
+                        @Override
+                        public void run() {
+                            // on disk before the dialog shows up, in case the app gets killed meanwhile
+                            purchaseJournal.initiated(sku, itemType);
+
+                            launchPurchaseFlow(pendingIntent, purchaseRequestCode, callbackContext);
+                        }
+
+                    });
+
+                    if (!queued) {
+                        // plugin is going away, no dialog is shown
+                        pendingPurchaseItemTypes.remove(requestCode);
+                        pendingPurchaseSkus.remove(requestCode);
+                        pendingPurchaseCallbacks.remove(requestCode);
+                        callbackContext.error(new Error(
+                                ERR_PURCHASE_FAILED,
+                                "Plugin is destroyed, purchase was not started."
+                        ).toJavaScriptJSON());
+                    }
                 }
                 else if(response == BILLING_RESPONSE_RESULT_ITEM_ALREADY_OWNED) {
                     callbackContext.error(new Error(
@@ -391,100 +1555,448 @@ public class InAppBillingPlugin extends CordovaPlugin {
                         ex.getMessage()
                 ).toJavaScriptJSON());
             }
-            catch (IntentSender.SendIntentException ex) {
-                Logger.getLogger(InAppBillingPlugin.class.getName()).log(Level.SEVERE, null, ex);
-                callbackContext.error(new Error(
-                        ERR_PURCHASE_FAILED,
-                        ex.getMessage()
-                ).toJavaScriptJSON());
-            }
 
         }
     }
 
+    /**
+     * Starts the play store purchase dialog. This has to happen on UI thread,
+     * so it is posted there from billing thread.
+     *
+     * @param pendingIntent
+     * @param requestCode
+     * @param callbackContext
+     */
+    private void launchPurchaseFlow(final PendingIntent pendingIntent, final int requestCode, final CallbackContext callbackContext) {
+        final InAppBillingPlugin plugin = this;
+
+        cordova.getActivity().runOnUiThread(new Runnable() {
+
+            @Override
+            public void run() {
+                if (fakeService != null) {
+                    // no dialog, answer as play store would have
+                    Intent result = fakeService.takeBuyResult(pendingPurchaseSkus.get(requestCode));
+                    if (result != null) {
+                        onActivityResult(requestCode, Activity.RESULT_OK, result);
+                    }
+                    else {
+                        onActivityResult(requestCode, Activity.RESULT_CANCELED, new Intent());
+                    }
+                    return;
+                }
+
+                cordova.setActivityResultCallback(plugin);
+
+                try {
+                    cordova.getActivity().startIntentSenderForResult(
+                            pendingIntent.getIntentSender(),
+                            requestCode,
+                            new Intent(),
+                            0,
+                            0,
+                            0
+                    );
+
+                    jsLog("Purchase flow launched successfully");
+                }
+                catch (IntentSender.SendIntentException ex) {
+                    Logger.getLogger(InAppBillingPlugin.class.getName()).log(Level.SEVERE, null, ex);
+                    pendingPurchaseCallbacks.remove(requestCode);
+                    pendingPurchaseItemTypes.remove(requestCode);
+                    closeInJournal(pendingPurchaseSkus.remove(requestCode), "failed");
+                    callbackContext.error(new Error(
+                            ERR_PURCHASE_FAILED,
+                            ex.getMessage()
+                    ).toJavaScriptJSON());
+                }
+            }
+
+        });
+    }
+
     /**
      * Get list of purchases. This will also load the product details for
      * purchases.
      *
+     * Both item types are queried at the same time. Every page of purchases
+     * is sent to JavaScript as soon as it arrives, while keeping the callback.
+     * When all pages are done, callback is finished with the total count. The
+     * purchases are put into inventory only after both queries have returned.
+     *
      * @param callbackContext
      * @throws JSONException
      */
     private void getPurchases(CallbackContext callbackContext) throws JSONException {
         jsLog("getPurchases called.");
 
-        Error errorInapp = queryPurchases(BILLING_ITEM_TYPE_INAPP);
-        Error errorSubs = queryPurchases(BILLING_ITEM_TYPE_SUBS);
-
         // call success only if we had no error
-        if (errorInapp != null) {
-            callbackContext.error(errorInapp.toJavaScriptJSON());
-        }
-        else if (errorSubs != null) {
-            callbackContext.error(errorSubs.toJavaScriptJSON());
+        Error error = loadAllPurchases(callbackContext);
+        if (error != null) {
+            callbackContext.error(error.toJavaScriptJSON());
         }
         else {
-            callbackContext.success(myInventory.getAllPurchasesJSON());
+            JSONObject done = new JSONObject();
+            done.put("done", true);
+            done.put("count", myInventory.getPurchaseCount());
+
+            callbackContext.success(done);
+        }
+    }
+
+    /**
+     * Loads owned items of all types and puts them into inventory.
+     *
+     * @param callbackContext receives each loaded page, may be null
+     * @return error of the failed queries or null
+     */
+    private Error loadAllPurchases(CallbackContext callbackContext) {
+        List<Future<QueryResult<Purchase>>> queries = new ArrayList<Future<QueryResult<Purchase>>>();
+        queries.add(queryExecutor.submit(purchasesQuery(BILLING_ITEM_TYPE_INAPP, callbackContext)));
+        queries.add(queryExecutor.submit(purchasesQuery(BILLING_ITEM_TYPE_SUBS, callbackContext)));
+
+        List<Error> errors = new ArrayList<Error>();
+        for (QueryResult<Purchase> result : awaitAll(ERR_LOAD_RECEIPTS, queries)) {
+            // add the purchases to the inventory
+            if (result.error != null) {
+                // a part may be missing, so do not remove anything
+                myInventory.addPurchases(result.items);
+                errors.add(result.error);
+            }
+            else {
+                // all owned items of this type are loaded, drop the ones not owned anymore
+                myInventory.replacePurchases(result.itemType, result.items);
+                // also the ones owned in a previous run only
+                replaceEntitlements(result.itemType, result.items);
+            }
+        }
+
+        if (errors.isEmpty()) {
+            lastPurchasesRefresh = SystemClock.elapsedRealtime();
         }
+
+        return Error.merge(ERR_LOAD_RECEIPTS, "Loading purchases failed for all item types.", errors);
+    }
+
+    /**
+     * Builds up the query for owned items of one type, this is run on query
+     * pool and does not touch the inventory.
+     *
+     * @param itemType
+     * @param callbackContext receives each loaded page
+     * @return
+     */
+    private Callable<QueryResult<Purchase>> purchasesQuery(final String itemType, final CallbackContext callbackContext) {
+        return new Callable<QueryResult<Purchase>>() {
+
+            @Override
+            public QueryResult<Purchase> call() {
+                return queryPurchases(itemType, callbackContext);
+            }
+
+        };
     }
 
-    private Error queryPurchases(String itemType) {
-        Error ret = null;
-        jsLog("queryPurchases for type: " + itemType);
+    /**
+     * Loads all the owned items of a type, following the continuation token
+     * until the store has no more pages.
+     *
+     * @param itemType
+     * @param callbackContext receives each loaded page
+     * @return
+     */
+    private QueryResult<Purchase> queryPurchases(String itemType, CallbackContext callbackContext) {
+        QueryResult<Purchase> ret = new QueryResult<Purchase>(itemType);
+        jsLog("queryPurchases for type: %s", itemType);
+
+        if (billingService == null) {
+            ret.error = serviceDisconnected().withDetail("itemType", itemType);
+            return ret;
+        }
 
+        String continuationToken = null;
         try {
-            Bundle ownedItems = iabService.getPurchases(3, cordova.getActivity().getPackageName(), itemType, null);
+            do {
+                Bundle ownedItems = billingService.getPurchases(3, cordova.getActivity().getPackageName(), itemType, continuationToken);
+
+                int response = ownedItems.getInt("RESPONSE_CODE");
+                if (response != BILLING_RESPONSE_RESULT_OK) {
+                    ret.error = new Error(
+                            ERR_LOAD_RECEIPTS,
+                            "Cant load purchases. Response code: " + response
+                    ).withDetail("itemType", itemType);
+                    break;
+                }
 
-            int response = ownedItems.getInt("RESPONSE_CODE");
-            if (response == BILLING_RESPONSE_RESULT_OK) {
                 ArrayList<String> purchaseDataList = ownedItems.getStringArrayList("INAPP_PURCHASE_DATA_LIST");
                 ArrayList<String> signatureList = ownedItems.getStringArrayList("INAPP_DATA_SIGNATURE_LIST");
-                String continuationToken = ownedItems.getString("INAPP_CONTINUATION_TOKEN");
+                continuationToken = ownedItems.getString("INAPP_CONTINUATION_TOKEN");
 
-                jsLog("Got purchases: " + purchaseDataList.size());
-                jsLog("Got signatures: " + signatureList.size());
+                jsLog("Got purchases: %d", purchaseDataList.size());
+                jsLog("Got signatures: %d", signatureList.size());
 
+                Boolean[] verified = verifyPurchases(purchaseDataList, signatureList);
+                int unverified = 0;
+
+                List<Purchase> page = new ArrayList<Purchase>(purchaseDataList.size());
                 for (int i = 0; i < purchaseDataList.size(); ++i) {
                     String purchaseData = purchaseDataList.get(i);
                     String signature = signatureList.get(i);
 
                     try {
-                        Purchase purchase = new Purchase(purchaseData, signature);
+                        Purchase purchase = new Purchase(itemType, purchaseData, signature);
 
-                        if (base64EncodedPublicKey != null
-                            && !Security.verifyPurchase(base64EncodedPublicKey, purchaseData, signature)) {
+                        if (verified != null && verified[i] == null) {
+                            unverified++;
+                        }
+                        else if (verified != null && !verified[i]) {
 
-                            jsLog("Signature verification failed: " + purchaseData + " signature: " + signature);
+                            jsLog("Signature verification failed: %s signature: %s", purchaseData, signature);
                         }
                         else {
-                            jsLog("Purchase loaded for: " + purchase.getSku());
+                            jsLog("Purchase loaded for: %s", purchase.getSku());
 
-                            // add the purchase to the inventory
-                            myInventory.addPurchase(purchase);
+                            page.add(purchase);
                         }
                     }
                     catch (JSONException e) {
-                        ret = new Error(
+                        ret.error = new Error(
                                 ERR_JSON_CONVERSION_FAILED,
                                 e.getMessage()
-                        );
+                        ).withDetail("itemType", itemType);
                     }
                 }
-            }
 
-            // TODO: if continuationToken != null, call getPurchases again 
-            // and pass in the token to retrieve more items
+                if (unverified > 0) {
+                    // not all owned items are known, so none is dropped
+                    ret.error = new Error(
+                            ERR_LOAD_RECEIPTS,
+                            "Verification server could not be reached for " + unverified + " purchases"
+                    ).withDetail("itemType", itemType);
+                }
+
+                ret.items.addAll(page);
+                sendPurchasesPage(itemType, page, callbackContext);
+            }
+            while (continuationToken != null);
         }
         catch (RemoteException ex) {
             Logger.getLogger(InAppBillingPlugin.class.getName()).log(Level.SEVERE, null, ex);
-            ret = new Error(
+            ret.error = new Error(
                     ERR_LOAD_RECEIPTS,
                     ex.getMessage()
-            );
+            ).withDetail("itemType", itemType);
+        }
+
+        return ret;
+    }
+
+    /**
+     * Sends one page of purchases to JavaScript without finishing the
+     * callback.
+     *
+     * @param itemType
+     * @param page
+     * @param callbackContext
+     */
+    private void sendPurchasesPage(String itemType, List<Purchase> page, CallbackContext callbackContext) {
+        if (page.isEmpty() || callbackContext == null) {
+            return;
+        }
+
+        if (binaryResults) {
+            PluginResult result = new PluginResult(PluginResult.Status.OK, BinaryEncoder.encodePurchases(itemType, page));
+            result.setKeepCallback(true);
+            callbackContext.sendPluginResult(result);
+            return;
+        }
+
+        try {
+            JSONArray purchases = new JSONArray();
+            for (Purchase purchase : page) {
+                purchases.put(purchase.toJavaScriptJson());
+            }
+
+            JSONObject message = new JSONObject();
+            message.put("itemType", itemType);
+            message.put("page", purchases);
+
+            PluginResult result = new PluginResult(PluginResult.Status.OK, message);
+            result.setKeepCallback(true);
+            callbackContext.sendPluginResult(result);
+        }
+        catch (JSONException ex) {
+            jsLog("JSONException: %s", ex.getMessage());
+        }
+    }
+
+    /**
+     * Registers the callback to receive the changes of inventory, replacing
+     * any previous subscriber. It first receives a reset with the current
+     * content of inventory and then only the added, changed and removed items
+     * of each change.
+     *
+     * @param callbackContext
+     */
+    private void watchInventory(CallbackContext callbackContext) {
+        jsLog("watchInventory called.");
+
+        CallbackContext previous = changeSubscriber;
+        changeSubscriber = callbackContext;
+        if (previous != null) {
+            previous.success();
+        }
+
+        Inventory inventory = myInventory;
+        if (inventory != null) {
+            // sends the reset
+            inventory.setChangeListener(inventoryListener);
+        }
+        else {
+            PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
+            result.setKeepCallback(true);
+            callbackContext.sendPluginResult(result);
+        }
+    }
+
+    /**
+     * Stops sending the changes of inventory, the subscriber callback is
+     * finished.
+     *
+     * @param callbackContext
+     */
+    private void unwatchInventory(CallbackContext callbackContext) {
+        jsLog("unwatchInventory called.");
+
+        CallbackContext previous = changeSubscriber;
+        changeSubscriber = null;
+        if (previous != null) {
+            previous.success();
         }
 
+        callbackContext.success();
+    }
+
+    /**
+     * Sends one change of inventory to the subscriber, if there is one.
+     *
+     * @param changes
+     */
+    private void sendInventoryChanges(InventoryChanges changes) {
+        CallbackContext subscriber = changeSubscriber;
+        if (subscriber == null) {
+            return;
+        }
+
+        try {
+            PluginResult result = new PluginResult(PluginResult.Status.OK, changes.toJavaScriptJson());
+            result.setKeepCallback(true);
+            subscriber.sendPluginResult(result);
+        }
+        catch (JSONException ex) {
+            jsLog("JSONException: %s", ex.getMessage());
+        }
+    }
+
+    /**
+     * Tells whether user owns the product, as known from the purchases of this
+     * and previous runs. It is answered right away, even before init.
+     *
+     * @param productId
+     * @param callbackContext
+     */
+    private void isOwned(String productId, CallbackContext callbackContext) {
+        boolean owned = entitlements.isOwned(productId);
+        jsLog("isOwned %s: %b", productId, owned);
+
+        callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.OK, owned));
+    }
+
+    /**
+     * Returns the purchases user owns, as known from the purchases of this and
+     * previous runs. It is answered right away, even before init.
+     *
+     * @param callbackContext
+     */
+    private void getEntitlements(CallbackContext callbackContext) {
+        try {
+            JSONArray ret = new JSONArray();
+            for (Purchase purchase : entitlements.getEntitlements()) {
+                ret.put(purchase.toJavaScriptJson());
+            }
+
+            callbackContext.success(ret);
+        }
+        catch (JSONException ex) {
+            callbackContext.error(new Error(
+                    ERR_JSON_CONVERSION_FAILED,
+                    ex.getMessage()
+            ).toJavaScriptJSON());
+        }
+    }
+
+    /**
+     * Returns the recorded metrics together with the statistics of caches,
+     * request coalescing, billing connection and logger.
+     *
+     * @param callbackContext
+     */
+    private void getMetrics(CallbackContext callbackContext) {
+        try {
+            callbackContext.success(getAllMetrics());
+        }
+        catch (JSONException ex) {
+            callbackContext.error(new Error(
+                    ERR_JSON_CONVERSION_FAILED,
+                    ex.getMessage()
+            ).toJavaScriptJSON());
+        }
+    }
+
+    private JSONObject getAllMetrics() throws JSONException {
+        JSONObject log = new JSONObject();
+        log.put("dropped", logger.getDroppedCount());
+
+        JSONObject ret = metrics.toJson();
+        ret.put("skuCache", skuCache.getStats());
+        ret.put("coalescedRequests", coalescedRequests.getStats());
+        ret.put("connection", billingConnection.getStats());
+        if (remoteVerifier != null) {
+            ret.put("verification", remoteVerifier.getStats());
+        }
+        ret.put("log", log);
+
         return ret;
     }
 
+    /**
+     * Starts passing metrics to JavaScript periodically, if configured. Call
+     * on main thread.
+     */
+    private void scheduleMetricsDump() {
+        mainHandler.removeCallbacks(metricsDumpTask);
+
+        if (metricsDumpInterval > 0 && !paused) {
+            mainHandler.postDelayed(metricsDumpTask, metricsDumpInterval);
+        }
+    }
+
+    /**
+     * Answers with all the products in inventory, in the format requested on
+     * init. Both forms are built once per change of products.
+     *
+     * @param callbackContext
+     * @throws JSONException
+     */
+    private void sendProducts(CallbackContext callbackContext) throws JSONException {
+        if (binaryResults) {
+            callbackContext.success(myInventory.getAllProductsBinary());
+        }
+        else {
+            callbackContext.success(new SerializedJSONArray(myInventory.getAllProductsJSONString()));
+        }
+    }
+
     /**
      * Returns the list of all loaded products.
      *
@@ -494,7 +2006,7 @@ public class InAppBillingPlugin extends CordovaPlugin {
         jsLog("getLoadedProducts called.");
 
         if (initialized) {
-            callbackContext.success(myInventory.getAllProductsJSON());
+            sendProducts(callbackContext);
         }
         else {
             callbackContext.error(new Error(
@@ -516,46 +2028,222 @@ public class InAppBillingPlugin extends CordovaPlugin {
 
         if (productIds == null || productIds.isEmpty()) {
             jsLog("Product list was empty");
-            callbackContext.success(myInventory.getAllProductsJSON());
+            sendProducts(callbackContext);
         }
         else {
             jsLog("Loading/refreshing product details");
 
-            Bundle querySkus = new Bundle();
-            querySkus.putStringArrayList("ITEM_ID_LIST", productIds);
+            // only call success if no error has happened
+            Error error = fetchProductDetails(productIds);
+            if (error != null) {
+                callbackContext.error(error.toJavaScriptJSON());
+            }
+            else {
+                sendProducts(callbackContext);
+            }
+
+        }
+    }
+
+    /**
+     * Same as {@link #loadProductDetails} but answers from product details
+     * cache if all the products are found there. Stale ones are then refreshed
+     * in background and JavaScript is notified if their price has changed.
+     *
+     * @param productIds
+     * @param callbackContext
+     */
+    private void loadCachedProductDetails(final ArrayList<String> productIds, final CallbackContext callbackContext) throws JSONException {
+        if (productIds == null || productIds.isEmpty()) {
+            loadProductDetails(productIds, callbackContext);
+            return;
+        }
+
+        List<SkuDetails> cached = new ArrayList<SkuDetails>(productIds.size());
+        final ArrayList<String> staleIds = new ArrayList<String>();
+
+        for (String productId : productIds) {
+            SkuDetails details = skuCache.get(productId);
+            if (details == null) {
+                break;
+            }
+
+            cached.add(details);
+            if (!skuCache.isFresh(productId)) {
+                staleIds.add(productId);
+            }
+        }
+
+        if (logger.isEnabled()) {
+            jsLog("Product details cache: %s", skuCache.getStats());
+        }
+
+        if (cached.size() < productIds.size()) {
+            // some products were never loaded, no way around the store
+            loadProductDetails(productIds, callbackContext);
+            return;
+        }
+
+        myInventory.addSkuDetails(cached);
+        sendProducts(callbackContext);
+
+        if (!staleIds.isEmpty()) {
+            // queued like any other request, a full queue or a disconnected
+            // service only skips the refresh, cached values are kept
+            runOnBillingThread(new BillingTask(null) {
+
+                @Override
+                void runBilling() {
+                    jsLog("Refreshing stale product details: %s", staleIds);
+
+                    Error error = fetchProductDetails(staleIds);
+                    if (error != null) {
+                        jsLog("Refreshing product details failed: %s", error.getMessage());
+                    }
+                }
+
+            });
+        }
+    }
+
+    /**
+     * Loads product details from store and puts them into inventory and
+     * cache.
+     *
+     * The IDs are split into chunks the store accepts in one call and each
+     * chunk is looked up for both item types. All these queries run at the
+     * same time, so the time spent here is close to the slowest single query.
+     *
+     * @param productIds
+     * @return error of the failed queries or null
+     */
+    private Error fetchProductDetails(ArrayList<String> productIds) {
+        List<Future<QueryResult<SkuDetails>>> queries = new ArrayList<Future<QueryResult<SkuDetails>>>();
+        int chunk = 0;
+        for (int start = 0; start < productIds.size(); start += SKU_DETAILS_CHUNK_SIZE) {
+            ArrayList<String> chunkIds = new ArrayList<String>(
+                    productIds.subList(start, Math.min(start + SKU_DETAILS_CHUNK_SIZE, productIds.size()))
+            );
 
             // do same query with both types to load all!
-            Error errInapp = querySkuDetails(querySkus, BILLING_ITEM_TYPE_INAPP);
-            Error errSubs = querySkuDetails(querySkus, BILLING_ITEM_TYPE_SUBS);
+            queries.add(queryExecutor.submit(skuDetailsQuery(chunkIds, BILLING_ITEM_TYPE_INAPP, chunk)));
+            queries.add(queryExecutor.submit(skuDetailsQuery(chunkIds, BILLING_ITEM_TYPE_SUBS, chunk)));
+            chunk++;
+        }
 
-            // only call success if no error has happened
-            if (errInapp != null) {
-                callbackContext.error(errInapp.toJavaScriptJSON());
+        List<Error> errors = new ArrayList<Error>();
+        List<SkuDetails> loaded = new ArrayList<SkuDetails>();
+        List<SkuDetails> priceChanged = new ArrayList<SkuDetails>();
+
+        for (QueryResult<SkuDetails> result : awaitAll(ERR_LOAD_INVENTORY, queries)) {
+            for (SkuDetails details : result.items) {
+                SkuDetails previous = myInventory.getSkuDetails(details.getSku());
+                if (previous != null && !previous.hasSamePrice(details)) {
+                    priceChanged.add(details);
+                }
+
+                loaded.add(details);
             }
-            else if (errSubs != null) {
-                callbackContext.error(errSubs.toJavaScriptJSON());
+            if (result.error != null) {
+                errors.add(result.error);
             }
-            else {
-                callbackContext.success(myInventory.getAllProductsJSON());
+        }
+
+        myInventory.addSkuDetails(loaded);
+
+        boolean cacheChanged = skuCache.put(loaded);
+
+        if (errors.isEmpty()) {
+            // all queries answered, the products missing are gone from store
+            TreeSet<String> removed = new TreeSet<String>(productIds);
+            for (SkuDetails details : loaded) {
+                removed.remove(details.getSku());
+            }
+
+            cacheChanged |= skuCache.remove(removed);
+            // watchers get them as removed products
+            myInventory.eraseSkuDetails(removed);
+        }
+
+        if (cacheChanged) {
+            // billing thread does not wait for the disk
+            runOnIoThread(new Runnable() {
+
+                @Override
+                public void run() {
+                    skuCache.save();
+                }
+
+            });
+        }
+
+        if (!priceChanged.isEmpty()) {
+            notifyProductsChanged(priceChanged);
+        }
+
+        return Error.merge(ERR_LOAD_INVENTORY, "Loading product details failed for " + errors.size() + " queries.", errors);
+    }
+
+    /**
+     * Lets JavaScript know about products whose details have changed after
+     * they had been returned, like a cached price which was outdated.
+     *
+     * @param products
+     */
+    private void notifyProductsChanged(List<SkuDetails> products) {
+        try {
+            JSONArray changed = new JSONArray();
+            for (SkuDetails details : products) {
+                changed.put(details.toJson());
             }
 
+            webView.sendJavascript("window.inappbilling.productsChanged(" + changed.toString() + ");");
+        }
+        catch (JSONException ex) {
+            jsLog("JSONException: %s", ex.getMessage());
         }
     }
 
+    private Callable<QueryResult<SkuDetails>> skuDetailsQuery(final ArrayList<String> productIds, final String itemType, final int chunk) {
+        return new Callable<QueryResult<SkuDetails>>() {
+
+            @Override
+            public QueryResult<SkuDetails> call() {
+                Bundle querySkus = new Bundle();
+                querySkus.putStringArrayList("ITEM_ID_LIST", productIds);
+
+                QueryResult<SkuDetails> ret = querySkuDetails(querySkus, itemType);
+                if (ret.error != null) {
+                    // let the caller know which products were affected
+                    ret.error
+                            .withDetail("chunk", chunk)
+                            .withDetail("productIds", new JSONArray(productIds));
+                }
+
+                return ret;
+            }
+
+        };
+    }
+
     /**
-     * Loads the product details from play store and puts them in inventory,
-     * will reload the product if they have been already loaded before.
+     * Loads the product details from play store. The result is not put in
+     * inventory here, as this may run on any thread of the query pool.
      *
      * @param querySkus
      * @param itemType
-     * @param callbackContext
-     * @throws RemoteException
+     * @return
      */
-    private Error querySkuDetails(Bundle querySkus, String itemType) {
-        Error ret = null;
+    private QueryResult<SkuDetails> querySkuDetails(Bundle querySkus, String itemType) {
+        QueryResult<SkuDetails> ret = new QueryResult<SkuDetails>(itemType);
+
+        if (billingService == null) {
+            ret.error = serviceDisconnected().withDetail("itemType", itemType);
+            return ret;
+        }
 
         try {
-            Bundle skuDetailsInapp = iabService.getSkuDetails(
+            Bundle skuDetailsInapp = billingService.getSkuDetails(
                     3,
                     cordova.getActivity().getPackageName(),
                     itemType,
@@ -570,30 +2258,58 @@ public class InAppBillingPlugin extends CordovaPlugin {
                 for (String thisResponse : responseList) {
                     try {
                         SkuDetails d = new SkuDetails(itemType, thisResponse);
-                        jsLog("Got sku details: " + d);
+                        jsLog("Got sku details: %s", d);
 
-                        myInventory.addSkuDetails(d);
+                        ret.items.add(d);
                     }
                     catch (JSONException ex) {
-                        jsLog("JSONException: " + ex.getMessage());
+                        jsLog("JSONException: %s", ex.getMessage());
                     }
                 }
             }
             else {
-                ret = new Error(
+                ret.error = new Error(
                         ERR_LOAD_INVENTORY,
                         "Cant load product details. Responce code: " + response
-                );
+                ).withDetail("itemType", itemType);
             }
         }
         catch (RemoteException ex) {
             Logger.getLogger(InAppBillingPlugin.class
                     .getName()).log(Level.SEVERE, null, ex);
 
-            ret = new Error(
+            ret.error = new Error(
                     ERR_LOAD_INVENTORY,
                     ex.getMessage()
-            );
+            ).withDetail("itemType", itemType);
+        }
+
+        return ret;
+    }
+
+    /**
+     * Waits for all the given queries to finish. A query which could not
+     * complete is returned as a result carrying only an error.
+     *
+     * @param errorCode the code to report failed queries with
+     * @param futures
+     * @return results in the same order as futures
+     */
+    private <T> List<QueryResult<T>> awaitAll(int errorCode, List<Future<QueryResult<T>>> futures) {
+        List<QueryResult<T>> ret = new ArrayList<QueryResult<T>>(futures.size());
+
+        for (Future<QueryResult<T>> future : futures) {
+            try {
+                ret.add(future.get());
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                ret.add(QueryResult.<T>failed(new Error(errorCode, "Interrupted while waiting for billing service.")));
+            }
+            catch (ExecutionException ex) {
+                Logger.getLogger(InAppBillingPlugin.class.getName()).log(Level.SEVERE, null, ex);
+                ret.add(QueryResult.<T>failed(new Error(errorCode, String.valueOf(ex.getCause()))));
+            }
         }
 
         return ret;
@@ -611,22 +2327,14 @@ public class InAppBillingPlugin extends CordovaPlugin {
         Purchase purchase = myInventory.getPurchase(productId);
 
         if (purchase != null) {
-            try {
-                int response = iabService.consumePurchase(3, cordova.getActivity().getPackageName(), purchase.getToken());
+            QueryResult<Purchase> result = consumePurchase(purchase);
+            if (result.error == null) {
+                myInventory.erasePurchase(purchase.getSku());
 
-                if (response == BILLING_RESPONSE_RESULT_OK) {
-                    myInventory.erasePurchaseByOrderId(purchase.getOrderId());
-
-                    callbackContext.success(purchase.toJavaScriptJson());
-                }
+                callbackContext.success(purchase.toJavaScriptJson());
             }
-            catch (RemoteException ex) {
-                Logger.getLogger(InAppBillingPlugin.class.getName()).log(Level.WARNING, null, ex);
-
-                callbackContext.error(new Error(
-                        ERR_CONSUMPTION_FAILED,
-                        ex.getMessage()
-                ).toJavaScriptJSON());
+            else {
+                callbackContext.error(result.error.toJavaScriptJSON());
             }
         }
         else {
@@ -638,56 +2346,193 @@ public class InAppBillingPlugin extends CordovaPlugin {
 
     }
 
+    /**
+     * Consumes several owned items at once. The consume calls are sent to
+     * billing service in parallel, consumed items are removed from inventory
+     * in one step and the result of each item is returned in one list, in the
+     * same order as requested.
+     *
+     * @param productIds
+     * @param callbackContext
+     * @throws JSONException
+     */
+    private void consumeProducts(List<String> productIds, CallbackContext callbackContext) throws JSONException {
+        jsLog("consumeProducts called for: %s", productIds);
+
+        if (productIds == null || productIds.isEmpty()) {
+            callbackContext.error(new Error(
+                    ERR_INVALID_PRODUCT_ID,
+                    "No product ids passed to be consumed."
+            ).toJavaScriptJSON());
+            return;
+        }
+
+        // a null value keeps the place of an item being consumed
+        Map<String, JSONObject> results = new LinkedHashMap<String, JSONObject>();
+        List<String> submittedIds = new ArrayList<String>();
+        List<Future<QueryResult<Purchase>>> consumptions = new ArrayList<Future<QueryResult<Purchase>>>();
+
+        for (String productId : productIds) {
+            if (results.containsKey(productId)) {
+                continue;
+            }
+
+            Purchase purchase = myInventory.getPurchase(productId);
+            if (purchase == null) {
+                results.put(productId, consumeResult(productId, null, new Error(
+                        ERR_CONSUME_NOT_OWNED_ITEM,
+                        "No purchase record found for product id: " + productId
+                )));
+            }
+            else {
+                results.put(productId, null);
+                submittedIds.add(productId);
+                consumptions.add(queryExecutor.submit(consumeQuery(purchase)));
+            }
+        }
+
+        List<String> consumed = new ArrayList<String>();
+        List<QueryResult<Purchase>> done = awaitAll(ERR_CONSUMPTION_FAILED, consumptions);
+        for (int i = 0; i < done.size(); i++) {
+            String productId = submittedIds.get(i);
+            QueryResult<Purchase> result = done.get(i);
+
+            if (result.error == null) {
+                consumed.add(productId);
+                results.put(productId, consumeResult(productId, result.items.get(0), null));
+            }
+            else {
+                results.put(productId, consumeResult(productId, null, result.error));
+            }
+        }
+
+        // one inventory update for all the consumed items
+        myInventory.erasePurchases(consumed);
+
+        callbackContext.success(new JSONArray(results.values()));
+    }
+
+    private Callable<QueryResult<Purchase>> consumeQuery(final Purchase purchase) {
+        return new Callable<QueryResult<Purchase>>() {
+
+            @Override
+            public QueryResult<Purchase> call() {
+                return consumePurchase(purchase);
+            }
+
+        };
+    }
+
+    /**
+     * Asks billing service to consume a purchase, does not touch the
+     * inventory.
+     *
+     * @param purchase
+     * @return the purchase as only item if it was consumed, otherwise the
+     * error
+     */
+    private QueryResult<Purchase> consumePurchase(Purchase purchase) {
+        QueryResult<Purchase> ret = new QueryResult<Purchase>(purchase.getItemType());
+
+        if (billingService == null) {
+            ret.error = serviceDisconnected();
+            return ret;
+        }
+
+        try {
+            int response = billingService.consumePurchase(3, cordova.getActivity().getPackageName(), purchase.getToken());
+
+            if (response == BILLING_RESPONSE_RESULT_OK) {
+                ret.items.add(purchase);
+            }
+            else {
+                ret.error = new Error(
+                        ERR_CONSUMPTION_FAILED,
+                        "Consumption failed. Response code: " + response
+                );
+            }
+        }
+        catch (RemoteException ex) {
+            Logger.getLogger(InAppBillingPlugin.class.getName()).log(Level.WARNING, null, ex);
+
+            ret.error = new Error(
+                    ERR_CONSUMPTION_FAILED,
+                    ex.getMessage()
+            );
+        }
+
+        return ret;
+    }
+
+    /**
+     * Builds the result of one item of {@link #consumeProducts}.
+     *
+     * @param productId
+     * @param purchase the consumed purchase, null if consumption failed
+     * @param error
+     * @return
+     * @throws JSONException
+     */
+    private JSONObject consumeResult(String productId, Purchase purchase, Error error) throws JSONException {
+        JSONObject ret = new JSONObject();
+        ret.put("productId", productId);
+        ret.put("consumed", purchase != null);
+
+        if (purchase != null) {
+            ret.put("purchase", purchase.toJavaScriptJson());
+        }
+        if (error != null) {
+            ret.put("error", error.toJavaScriptJSON());
+        }
+
+        return ret;
+    }
+
     @Override
     public void onActivityResult(int requestCode, int resultCode, Intent data) {
 
-        if (pendingPurchaseCallbacks.containsKey(requestCode)) {
+        CallbackContext callbackContext = pendingPurchaseCallbacks.remove(requestCode);
+        String itemType = pendingPurchaseItemTypes.remove(requestCode);
+        String sku = pendingPurchaseSkus.remove(requestCode);
+        if (callbackContext != null) {
             jsLog("Got response of a purchase");
 
             // going to handle response of a purchase
-            CallbackContext callbackContext = pendingPurchaseCallbacks.get(requestCode);
             int responseCode = data.getIntExtra("RESPONSE_CODE", 0);
             String purchaseData = data.getStringExtra("INAPP_PURCHASE_DATA");
             String dataSignature = data.getStringExtra("INAPP_DATA_SIGNATURE");
 
             if (resultCode == Activity.RESULT_OK && responseCode == BILLING_RESPONSE_RESULT_OK) {
                 if (purchaseData == null || dataSignature == null) {
+                    // result is unknown, left outstanding for the next start
                     callbackContext.error(new Error(
                             ERR_PURCHASE_FAILED,
                             "Empty purchase data or empty signature returned"
                     ).toJavaScriptJSON());
                 }
-                else {
-
-                    try {
-                        Purchase purchase = new Purchase(purchaseData, dataSignature);
-
-                        if (base64EncodedPublicKey != null
-                            && !Security.verifyPurchase(base64EncodedPublicKey, purchaseData, dataSignature)) {
-
-                            callbackContext.error(new Error(
-                                    ERR_PAYMENT_INVALID,
-                                    "Signature verification failed"
-                            ).toJavaScriptJSON());
+                else if (remoteVerifier != null) {
+                    // no network on main thread
+                    final CallbackContext purchaseCallback = callbackContext;
+                    final String purchaseItemType = itemType;
+                    final String purchaseSku = sku;
+                    final String signedData = purchaseData;
+                    final String signature = dataSignature;
+
+                    cordova.getThreadPool().execute(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            completePurchase(purchaseItemType, purchaseSku, signedData, signature, purchaseCallback);
                         }
-                        else {
-                            jsLog("Purchase successful.");
-
-                            // add the purchase to the inventory
-                            myInventory.addPurchase(purchase);
 
-                            callbackContext.success(purchase.toJavaScriptJson());
-                        }
-                    }
-                    catch (JSONException e) {
-                        callbackContext.error(new Error(
-                                ERR_JSON_CONVERSION_FAILED,
-                                e.getMessage()
-                        ).toJavaScriptJSON());
-                    }
+                    });
+                }
+                else {
+                    completePurchase(itemType, sku, purchaseData, dataSignature, callbackContext);
                 }
             }
             else if (resultCode == Activity.RESULT_CANCELED) {
+                closeInJournal(sku, "cancelled");
                 callbackContext.error(new Error(
                         ERR_PAYMENT_CANCELLED,
                         "Purchase cancelled by user."
@@ -695,6 +2540,7 @@ public class InAppBillingPlugin extends CordovaPlugin {
             }
             else {
                 // unknown result, interpret as error
+                closeInJournal(sku, "failed");
                 callbackContext.error(new Error(
                         ERR_PURCHASE_FAILED,
                         "Unknown result code from activity. ResultCode: " + resultCode + " ResponseCode: " + responseCode
@@ -703,6 +2549,89 @@ public class InAppBillingPlugin extends CordovaPlugin {
         }
     }
 
+    /**
+     * Verifies the data of a successful purchase, adds it to inventory and
+     * passes it to callback.
+     *
+     * @param itemType
+     * @param sku
+     * @param purchaseData
+     * @param dataSignature
+     * @param callbackContext
+     */
+    private void completePurchase(String itemType, String sku, String purchaseData, String dataSignature, CallbackContext callbackContext) {
+        try {
+            Purchase purchase = new Purchase(itemType, purchaseData, dataSignature);
+
+            Boolean verified = verifyPurchase(purchaseData, dataSignature);
+            if (verified == null) {
+                // outstanding in journal, reconciled with the store on next start
+                callbackContext.error(new Error(
+                        ERR_PURCHASE_FAILED,
+                        "Verification server could not be reached, purchase is checked again on next start"
+                ).toJavaScriptJSON());
+            }
+            else if (!verified) {
+
+                closeInJournal(sku, "invalid");
+                callbackContext.error(new Error(
+                        ERR_PAYMENT_INVALID,
+                        "Signature verification failed"
+                ).toJavaScriptJSON());
+            }
+            else {
+                jsLog("Purchase successful.");
+
+                completeInJournal(purchase);
+
+                // add the purchase to the inventory
+                myInventory.addPurchase(purchase);
+
+                callbackContext.success(purchase.toJavaScriptJson());
+            }
+        }
+        catch (JSONException e) {
+            callbackContext.error(new Error(
+                    ERR_JSON_CONVERSION_FAILED,
+                    e.getMessage()
+            ).toJavaScriptJSON());
+        }
+    }
+
+    /**
+     * Records a successful purchase in journal, on I/O thread.
+     *
+     * @param purchase
+     */
+    private void completeInJournal(final Purchase purchase) {
+        runOnIoThread(new Runnable() {
+
+            @Override
+            public void run() {
+                purchaseJournal.completed(purchase);
+            }
+
+        });
+    }
+
+    /**
+     * Records in journal that nothing is outstanding for the product anymore,
+     * on I/O thread.
+     *
+     * @param sku
+     * @param reason
+     */
+    private void closeInJournal(final String sku, final String reason) {
+        runOnIoThread(new Runnable() {
+
+            @Override
+            public void run() {
+                purchaseJournal.closed(sku, reason);
+            }
+
+        });
+    }
+
     /**
      * Will simply return the complete purchase data. This is mainly for iOS
      * compatibility here.
@@ -723,6 +2652,25 @@ public class InAppBillingPlugin extends CordovaPlugin {
         }
     }
 
+    @Override
+    public void onPause(boolean multitasking) {
+        super.onPause(multitasking);
+
+        paused = true;
+        mainHandler.removeCallbacks(refreshTask);
+        mainHandler.removeCallbacks(metricsDumpTask);
+    }
+
+    @Override
+    public void onResume(boolean multitasking) {
+        super.onResume(multitasking);
+
+        paused = false;
+        // purchases may have been made outside the app meanwhile
+        scheduleRefresh(refreshInterval - (SystemClock.elapsedRealtime() - lastPurchasesRefresh));
+        scheduleMetricsDump();
+    }
+
     @Override
     public void onDestroy() {
         jsLog("onDestroy called.");
@@ -730,10 +2678,16 @@ public class InAppBillingPlugin extends CordovaPlugin {
         super.onDestroy();
 
         initialized = false;
+        mainHandler.removeCallbacks(refreshTask);
+        mainHandler.removeCallbacks(metricsDumpTask);
 
-        if (iabService != null) {
-            cordova.getActivity().getApplicationContext().unbindService(iabServiceConnection);
-        }
+        billingExecutor.shutdownNow();
+        queryExecutor.shutdownNow();
+        // pending writes are still made
+        ioExecutor.shutdown();
+        logger.close();
+
+        billingConnection.unbind();
     }
 
 }
@@ -0,0 +1,123 @@
+/**
+ * In App Billing Plugin
+ *
+ * Details and more information under:
+ * https://github.com/mohamnag/InAppBilling/wiki
+ */
+package com.mohamnag.inappbilling;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Counts latencies in buckets whose width grows with the value, like an HDR
+ * histogram with a precision of 3 bits: each power of two is split into 8
+ * buckets, so any recorded value is known within 12.5%. This keeps memory
+ * fixed and recording cheap, whatever the range of values.
+ *
+ * Values are recorded in microseconds and reported in milliseconds.
+ */
+class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+
+    private long count = 0;
+    private long sum = 0;
+    private long min = Long.MAX_VALUE;
+    private long max = 0;
+
+    synchronized void record(long micros) {
+        if (micros < 0) {
+            micros = 0;
+        }
+
+        counts[bucketOf(micros)]++;
+        count++;
+        sum += micros;
+        min = Math.min(min, micros);
+        max = Math.max(max, micros);
+    }
+
+    synchronized long getCount() {
+        return count;
+    }
+
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+
+        return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Returns the value in the middle of a bucket.
+     */
+    private static long valueOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+
+        int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+        long lowest = (long) (SUB_BUCKETS + (bucket - SUB_BUCKETS) % SUB_BUCKETS) << shift;
+
+        return lowest + ((1L << shift) >> 1);
+    }
+
+    /**
+     * Returns the value below which the given part of recorded values are.
+     *
+     * @param percentile between 0 and 100
+     * @return in microseconds
+     */
+    synchronized long getPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+
+        long wanted = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= wanted) {
+                // not beyond what was really recorded
+                return Math.max(min, Math.min(max, valueOf(i)));
+            }
+        }
+
+        return max;
+    }
+
+    /**
+     * Returns count and latencies in milliseconds: min, mean, p50, p90, p99
+     * and max.
+     *
+     * @return
+     * @throws JSONException
+     */
+    synchronized JSONObject toJson() throws JSONException {
+        JSONObject ret = new JSONObject();
+        ret.put("count", count);
+        if (count > 0) {
+            ret.put("min", toMillis(min));
+            ret.put("mean", toMillis(sum / count));
+            ret.put("p50", toMillis(getPercentile(50)));
+            ret.put("p90", toMillis(getPercentile(90)));
+            ret.put("p99", toMillis(getPercentile(99)));
+            ret.put("max", toMillis(max));
+        }
+
+        return ret;
+    }
+
+    private static double toMillis(long micros) {
+        return micros / 1000.0;
+    }
+}
@@ -0,0 +1,303 @@
+/**
+ * In App Billing Plugin
+ *
+ * Details and more information under:
+ * https://github.com/mohamnag/InAppBilling/wiki
+ */
+package com.mohamnag.inappbilling;
+
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.RemoteException;
+import com.android.vending.billing.IInAppBillingService;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.CordovaWebView;
+import org.apache.cordova.PluginResult;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Latency histograms and error counts of the actions called from JavaScript
+ * and of the calls made to billing service. Comparing both shows how much of
+ * an action is spent waiting for the store and how much on our side.
+ *
+ * When disabled nothing is wrapped or recorded, callbacks and service are
+ * used as they are.
+ */
+class Metrics {
+
+    private final boolean enabled;
+    private final CordovaWebView webView;
+
+    private final Map<String, LatencyHistogram> actions = new HashMap<String, LatencyHistogram>();
+    private final Map<String, LatencyHistogram> calls = new HashMap<String, LatencyHistogram>();
+
+    /**
+     * Number of failed actions per action and error code.
+     */
+    private final Map<String, Map<Integer, Integer>> errors = new HashMap<String, Map<Integer, Integer>>();
+
+    Metrics(CordovaWebView webView, boolean enabled) {
+        this.webView = webView;
+        this.enabled = enabled;
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Wraps the callback of an action, so the time until its final result is
+     * recorded, together with the error code if it failed.
+     *
+     * @param action
+     * @param callbackContext
+     * @return the callback to be used for the action
+     */
+    CallbackContext meter(String action, CallbackContext callbackContext) {
+        if (!enabled) {
+            return callbackContext;
+        }
+
+        return new MeteredCallbackContext(action, callbackContext);
+    }
+
+    /**
+     * Wraps the billing service, so the time of each call is recorded.
+     *
+     * @param service
+     * @return the service to be called
+     */
+    IInAppBillingService meter(IInAppBillingService service) {
+        if (!enabled || service == null || service instanceof MeteredBillingService) {
+            return service;
+        }
+
+        return new MeteredBillingService(service);
+    }
+
+    private void record(Map<String, LatencyHistogram> histograms, String name, long startNanos) {
+        long micros = (System.nanoTime() - startNanos) / 1000;
+
+        LatencyHistogram histogram;
+        synchronized (histograms) {
+            histogram = histograms.get(name);
+            if (histogram == null) {
+                histogram = new LatencyHistogram();
+                histograms.put(name, histogram);
+            }
+        }
+
+        histogram.record(micros);
+    }
+
+    private synchronized void countError(String action, int errorCode) {
+        Map<Integer, Integer> counts = errors.get(action);
+        if (counts == null) {
+            counts = new HashMap<Integer, Integer>();
+            errors.put(action, counts);
+        }
+
+        Integer count = counts.get(errorCode);
+        counts.put(errorCode, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * Returns the latencies and error counts per action and the latencies per
+     * call to billing service:
+     * {enabled, actions: {name: {latency, errors: {ERR_NAME: count}}}, calls: {method: {latency}}}
+     *
+     * @return
+     * @throws JSONException
+     */
+    JSONObject toJson() throws JSONException {
+        JSONObject ret = new JSONObject();
+        ret.put("enabled", enabled);
+
+        JSONObject actionsJson = new JSONObject();
+        synchronized (actions) {
+            for (Map.Entry<String, LatencyHistogram> entry : actions.entrySet()) {
+                JSONObject action = new JSONObject();
+                action.put("latency", entry.getValue().toJson());
+                action.put("errors", errorsToJson(entry.getKey()));
+                actionsJson.put(entry.getKey(), action);
+            }
+        }
+        ret.put("actions", actionsJson);
+
+        JSONObject callsJson = new JSONObject();
+        synchronized (calls) {
+            for (Map.Entry<String, LatencyHistogram> entry : calls.entrySet()) {
+                JSONObject call = new JSONObject();
+                call.put("latency", entry.getValue().toJson());
+                callsJson.put(entry.getKey(), call);
+            }
+        }
+        ret.put("calls", callsJson);
+
+        return ret;
+    }
+
+    private synchronized JSONObject errorsToJson(String action) throws JSONException {
+        JSONObject ret = new JSONObject();
+
+        Map<Integer, Integer> counts = errors.get(action);
+        if (counts != null) {
+            Map<Integer, String> names = errorCodeNames();
+            for (Map.Entry<Integer, Integer> entry : counts.entrySet()) {
+                String name = names.get(entry.getKey());
+                ret.put(name != null ? name : String.valueOf(entry.getKey()), entry.getValue());
+            }
+        }
+
+        return ret;
+    }
+
+    private static Map<Integer, String> errorCodeNames;
+
+    /**
+     * Maps the error codes to the names of their constants, like
+     * ERR_LOAD_INVENTORY, so the counts can be read without looking them up.
+     */
+    private static synchronized Map<Integer, String> errorCodeNames() {
+        if (errorCodeNames == null) {
+            errorCodeNames = new TreeMap<Integer, String>();
+            for (Field field : InAppBillingPlugin.class.getFields()) {
+                if (field.getName().startsWith("ERR_")
+                    && Modifier.isStatic(field.getModifiers())
+                    && field.getType() == int.class) {
+
+                    try {
+                        errorCodeNames.put(field.getInt(null), field.getName());
+                    }
+                    catch (IllegalAccessException ex) {
+                        // public constants, does not happen
+                    }
+                }
+            }
+        }
+
+        return errorCodeNames;
+    }
+
+    /**
+     * Records the time from creation until the final result, which is the
+     * first one not keeping the callback.
+     */
+    private class MeteredCallbackContext extends CallbackContext {
+
+        final String action;
+        final CallbackContext callbackContext;
+        final long start = System.nanoTime();
+
+        boolean recorded = false;
+
+        MeteredCallbackContext(String action, CallbackContext callbackContext) {
+            super(callbackContext.getCallbackId(), webView);
+            this.action = action;
+            this.callbackContext = callbackContext;
+        }
+
+        @Override
+        public void sendPluginResult(PluginResult pluginResult) {
+            synchronized (this) {
+                if (!recorded && !pluginResult.getKeepCallback()) {
+                    recorded = true;
+                    record(actions, action, start);
+
+                    if (pluginResult.getStatus() == PluginResult.Status.ERROR.ordinal()) {
+                        countError(action, errorCodeOf(pluginResult));
+                    }
+                }
+            }
+
+            callbackContext.sendPluginResult(pluginResult);
+        }
+
+        private int errorCodeOf(PluginResult pluginResult) {
+            try {
+                return new JSONObject(pluginResult.getMessage()).optInt("errorCode", InAppBillingPlugin.ERR_UNKNOWN);
+            }
+            catch (JSONException ex) {
+                return InAppBillingPlugin.ERR_UNKNOWN;
+            }
+        }
+    }
+
+    /**
+     * Passes every call to the billing service and records its time.
+     */
+    private class MeteredBillingService implements IInAppBillingService {
+
+        final IInAppBillingService service;
+
+        MeteredBillingService(IInAppBillingService service) {
+            this.service = service;
+        }
+
+        @Override
+        public int isBillingSupported(int apiVersion, String packageName, String type) throws RemoteException {
+            long start = System.nanoTime();
+            try {
+                return service.isBillingSupported(apiVersion, packageName, type);
+            }
+            finally {
+                record(calls, "isBillingSupported", start);
+            }
+        }
+
+        @Override
+        public Bundle getSkuDetails(int apiVersion, String packageName, String type, Bundle skusBundle) throws RemoteException {
+            long start = System.nanoTime();
+            try {
+                return service.getSkuDetails(apiVersion, packageName, type, skusBundle);
+            }
+            finally {
+                record(calls, "getSkuDetails", start);
+            }
+        }
+
+        @Override
+        public Bundle getBuyIntent(int apiVersion, String packageName, String sku, String type, String developerPayload) throws RemoteException {
+            long start = System.nanoTime();
+            try {
+                return service.getBuyIntent(apiVersion, packageName, sku, type, developerPayload);
+            }
+            finally {
+                record(calls, "getBuyIntent", start);
+            }
+        }
+
+        @Override
+        public Bundle getPurchases(int apiVersion, String packageName, String type, String continuationToken) throws RemoteException {
+            long start = System.nanoTime();
+            try {
+                return service.getPurchases(apiVersion, packageName, type, continuationToken);
+            }
+            finally {
+                record(calls, "getPurchases", start);
+            }
+        }
+
+        @Override
+        public int consumePurchase(int apiVersion, String packageName, String purchaseToken) throws RemoteException {
+            long start = System.nanoTime();
+            try {
+                return service.consumePurchase(apiVersion, packageName, purchaseToken);
+            }
+            finally {
+                record(calls, "consumePurchase", start);
+            }
+        }
+
+        @Override
+        public IBinder asBinder() {
+            return service.asBinder();
+        }
+    }
+}
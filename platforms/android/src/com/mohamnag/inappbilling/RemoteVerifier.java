@@ -0,0 +1,319 @@
+/**
+ * In App Billing Plugin
+ *
+ * Details and more information under:
+ * https://github.com/mohamnag/InAppBilling/wiki
+ */
+package com.mohamnag.inappbilling;
+
+import com.squareup.okhttp.OkHttpClient;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Verifies purchases on a server instead of on device. Purchases not verified
+ * yet are posted in one request per batch:
+ * <pre>
+ * {"purchases": [{"purchaseData": "...", "signature": "..."}, ...]}
+ * </pre>
+ * and the server answers with one verdict per purchase, in the same order:
+ * <pre>
+ * {"verdicts": [true, false, ...]}
+ * </pre>
+ *
+ * Verdicts are kept in a file, so a purchase is only sent once per install.
+ * They are keyed by a SHA-256 hash of purchase data and signature together,
+ * not by anything read from the unverified data, so a forged purchase can
+ * not pick up the verdict of a valid one. All requests go through one
+ * OkHttpClient, whose pool keeps the connection to the server open between
+ * batches.
+ */
+class RemoteVerifier {
+
+    private static final int TIMEOUT = 10;
+
+    private static final String ENCODING = "UTF-8";
+
+    private static final String KEY_ALGORITHM = "SHA-256";
+
+    /**
+     * Length of a key in hex, entries of older files with other keys are
+     * dropped.
+     */
+    private static final int KEY_LENGTH = 64;
+
+    private final URL url;
+    private final File file;
+    private final OkHttpClient client = new OkHttpClient();
+
+    private Map<String, Boolean> verdicts;
+
+    private int requests = 0;
+    private int cacheHits = 0;
+
+    RemoteVerifier(URL url, File file) {
+        this.url = url;
+        this.file = file;
+
+        client.setConnectTimeout(TIMEOUT, TimeUnit.SECONDS);
+        client.setReadTimeout(TIMEOUT, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Returns the verdict of each purchase, from cache or from server. Call it
+     * off main thread, it may wait for the server.
+     *
+     * @param signedData
+     * @param signatures signature of each item in signedData
+     * @return verdict of each item in signedData, null for the ones server
+     * could not be asked about
+     */
+    Boolean[] verify(List<String> signedData, List<String> signatures) {
+        Boolean[] ret = new Boolean[signedData.size()];
+        String[] keys = new String[ret.length];
+        List<Integer> unknown = new ArrayList<Integer>();
+
+        synchronized (this) {
+            for (int i = 0; i < ret.length; i++) {
+                keys[i] = keyOf(signedData.get(i), signatures.get(i));
+                ret[i] = load().get(keys[i]);
+
+                if (ret[i] == null) {
+                    unknown.add(i);
+                }
+                else {
+                    cacheHits++;
+                }
+            }
+        }
+
+        if (unknown.isEmpty()) {
+            return ret;
+        }
+
+        try {
+            JSONArray purchases = new JSONArray();
+            for (int i : unknown) {
+                JSONObject purchase = new JSONObject();
+                purchase.put("purchaseData", signedData.get(i));
+                purchase.put("signature", signatures.get(i));
+                purchases.put(purchase);
+            }
+
+            JSONObject request = new JSONObject();
+            request.put("purchases", purchases);
+
+            JSONArray answers = post(request).getJSONArray("verdicts");
+            if (answers.length() != unknown.size()) {
+                throw new JSONException("Expected " + unknown.size() + " verdicts, got " + answers.length());
+            }
+
+            synchronized (this) {
+                for (int j = 0; j < unknown.size(); j++) {
+                    int i = unknown.get(j);
+                    ret[i] = answers.getBoolean(j);
+
+                    load().put(keys[i], ret[i]);
+                }
+
+                save();
+            }
+        }
+        catch (IOException ex) {
+            // not cached, asked again next time
+            Logger.getLogger(RemoteVerifier.class.getName()).log(Level.WARNING, null, ex);
+        }
+        catch (JSONException ex) {
+            Logger.getLogger(RemoteVerifier.class.getName()).log(Level.WARNING, null, ex);
+        }
+
+        return ret;
+    }
+
+    private JSONObject post(JSONObject request) throws IOException, JSONException {
+        byte[] body = request.toString().getBytes(ENCODING);
+
+        HttpURLConnection connection = client.open(url);
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(body.length);
+        connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+
+        synchronized (this) {
+            requests++;
+        }
+
+        OutputStream out = connection.getOutputStream();
+        try {
+            out.write(body);
+        }
+        finally {
+            out.close();
+        }
+
+        int status = connection.getResponseCode();
+        InputStream in = status == HttpURLConnection.HTTP_OK ? connection.getInputStream() : connection.getErrorStream();
+
+        // read to the end and close the stream, not disconnect, so the
+        // connection goes back to the pool
+        String response = in != null ? readFully(in) : "";
+        if (status != HttpURLConnection.HTTP_OK) {
+            throw new IOException("Verification failed with HTTP status " + status + ": " + response);
+        }
+
+        return new JSONObject(response);
+    }
+
+    private static String readFully(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream ret = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = in.read(buffer)) >= 0) {
+                ret.write(buffer, 0, count);
+            }
+
+            return new String(ret.toByteArray(), ENCODING);
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns the cache key of a purchase, the SHA-256 of its data and
+     * signature in hex.
+     */
+    private static String keyOf(String signedData, String signature) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance(KEY_ALGORITHM);
+            digest.update(signedData.getBytes(ENCODING));
+            // separated, so no other split of the same bytes gives this key
+            digest.update((byte) 0);
+            digest.update(signature.getBytes(ENCODING));
+
+            StringBuilder ret = new StringBuilder(KEY_LENGTH);
+            for (byte b : digest.digest()) {
+                ret.append(Character.forDigit((b >> 4) & 0xF, 16));
+                ret.append(Character.forDigit(b & 0xF, 16));
+            }
+
+            return ret.toString();
+        }
+        catch (NoSuchAlgorithmException ex) {
+            // every java platform has SHA-256
+            throw new IllegalStateException(ex);
+        }
+        catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Numbers of requests made to server and of verdicts taken from cache.
+     *
+     * @return
+     * @throws JSONException
+     */
+    synchronized JSONObject getStats() throws JSONException {
+        JSONObject ret = new JSONObject();
+        ret.put("requests", requests);
+        ret.put("cacheHits", cacheHits);
+        ret.put("cached", load().size());
+
+        return ret;
+    }
+
+    /**
+     * Reads the verdicts file on first access, a missing or broken file
+     * results in an empty cache.
+     *
+     * @return
+     */
+    private Map<String, Boolean> load() {
+        if (verdicts != null) {
+            return verdicts;
+        }
+
+        verdicts = new HashMap<String, Boolean>();
+        if (!file.exists()) {
+            return verdicts;
+        }
+
+        try {
+            InputStream in = new FileInputStream(file);
+            JSONObject stored = new JSONObject(readFully(in));
+            Iterator<?> keys = stored.keys();
+
+            while (keys.hasNext()) {
+                String key = (String) keys.next();
+                if (key.length() == KEY_LENGTH) {
+                    verdicts.put(key, stored.optBoolean(key));
+                }
+            }
+        }
+        catch (IOException ex) {
+            Logger.getLogger(RemoteVerifier.class.getName()).log(Level.WARNING, null, ex);
+        }
+        catch (JSONException ex) {
+            Logger.getLogger(RemoteVerifier.class.getName()).log(Level.WARNING, null, ex);
+        }
+
+        return verdicts;
+    }
+
+    /**
+     * Writes all verdicts to a temporary file first and then replaces the
+     * verdicts file with it, so a crash while writing does not leave a broken
+     * file behind.
+     */
+    private void save() {
+        File tmp = new File(file.getPath() + ".tmp");
+
+        try {
+            JSONObject stored = new JSONObject();
+            for (Map.Entry<String, Boolean> entry : verdicts.entrySet()) {
+                stored.put(entry.getKey(), entry.getValue().booleanValue());
+            }
+
+            OutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(stored.toString().getBytes(ENCODING));
+            }
+            finally {
+                out.close();
+            }
+
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+            }
+        }
+        catch (IOException ex) {
+            Logger.getLogger(RemoteVerifier.class.getName()).log(Level.WARNING, null, ex);
+        }
+        catch (JSONException ex) {
+            Logger.getLogger(RemoteVerifier.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+}
@@ -388,8 +388,21 @@ public class Base64 {
      * @since 1.4
      */
     public static byte[] decode(String s) throws Base64DecoderException {
-        byte[] bytes = s.getBytes();
-        return decode(bytes, 0, bytes.length);
+        if (!isAscii(s)) {
+            // keep the behaviour of decoding the default encoding bytes
+            byte[] bytes = s.getBytes();
+            return decode(bytes, 0, bytes.length);
+        }
+
+        byte[] outBuff = new byte[maxDecodedLength(s.length())];
+        int outLen = decode(s, 0, s.length(), outBuff, 0, DECODABET);
+        if (outLen == outBuff.length) {
+            return outBuff;
+        }
+
+        byte[] out = new byte[outLen];
+        System.arraycopy(outBuff, 0, out, 0, outLen);
+        return out;
     }
 
     /**
@@ -400,8 +413,169 @@ public class Base64 {
      * @return the decoded data
      */
     public static byte[] decodeWebSafe(String s) throws Base64DecoderException {
-        byte[] bytes = s.getBytes();
-        return decodeWebSafe(bytes, 0, bytes.length);
+        if (!isAscii(s)) {
+            byte[] bytes = s.getBytes();
+            return decodeWebSafe(bytes, 0, bytes.length);
+        }
+
+        byte[] outBuff = new byte[maxDecodedLength(s.length())];
+        int outLen = decode(s, 0, s.length(), outBuff, 0, WEBSAFE_DECODABET);
+        if (outLen == outBuff.length) {
+            return outBuff;
+        }
+
+        byte[] out = new byte[outLen];
+        System.arraycopy(outBuff, 0, out, 0, outLen);
+        return out;
+    }
+
+    /**
+     * Returns the size a buffer must have at least, to hold the decoded data
+     * of the given number of Base64 characters.
+     *
+     * @param len number of characters to decode
+     * @return upper limit on the size of decoded data
+     */
+    public static int maxDecodedLength(int len) {
+        return 2 + len * 3 / 4;
+    }
+
+    /**
+     * Decodes Base64 characters directly into the given buffer, without any
+     * intermediate copy. Only ASCII characters are accepted.
+     *
+     * @param source the Base64 encoded data
+     * @param destination buffer of at least {@link #maxDecodedLength} bytes
+     * after destOffset
+     * @param destOffset where to put the decoded data
+     * @return number of decoded bytes
+     * @throws Base64DecoderException
+     */
+    public static int decode(CharSequence source, byte[] destination, int destOffset)
+            throws Base64DecoderException {
+        return decode(source, 0, source.length(), destination, destOffset, DECODABET);
+    }
+
+    /**
+     * Decodes web safe Base64 characters directly into the given buffer.
+     * Web safe encoding uses '-' instead of '+', '_' instead of '/'
+     *
+     * @param source the Base64 encoded data
+     * @param destination buffer of at least {@link #maxDecodedLength} bytes
+     * after destOffset
+     * @param destOffset where to put the decoded data
+     * @return number of decoded bytes
+     * @throws Base64DecoderException
+     */
+    public static int decodeWebSafe(CharSequence source, byte[] destination, int destOffset)
+            throws Base64DecoderException {
+        return decode(source, 0, source.length(), destination, destOffset, WEBSAFE_DECODABET);
+    }
+
+    private static boolean isAscii(CharSequence s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) > 0x7f) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Same as {@link #decode(byte[], int, int, byte[])} but reads characters
+     * and writes to the given buffer. Accepts and rejects exactly the same
+     * input as the byte array version for ASCII characters.
+     *
+     * @param source the Base64 encoded data
+     * @param off the offset of where to begin decoding
+     * @param len the length of characters to decode
+     * @param destination the buffer to write decoded data to
+     * @param destOffset where to begin writing
+     * @param decodabet the decodabet for decoding Base64 content
+     * @return number of decoded bytes
+     */
+    private static int decode(CharSequence source, int off, int len,
+            byte[] destination, int destOffset, byte[] decodabet)
+            throws Base64DecoderException {
+        int outBuffPosn = destOffset;
+
+        // the current group of four characters, kept in locals instead of an array
+        int c0 = 0, c1 = 0, c2 = 0, c3 = 0;
+        int b4Posn = 0;
+        for (int i = 0; i < len; i++) {
+            char c = source.charAt(i + off);
+            if (c > 0x7f) {
+                throw new Base64DecoderException("Bad Base64 input character at " + i
+                        + ": " + (int) c + "(decimal)");
+            }
+
+            byte sbiDecode = decodabet[c];
+
+            if (sbiDecode >= WHITE_SPACE_ENC) { // White space Equals sign or better
+                if (sbiDecode >= EQUALS_SIGN_ENC) {
+                    // An equals sign (for padding) must not occur at position 0 or 1
+                    // and must be the last byte[s] in the encoded value
+                    if (c == EQUALS_SIGN) {
+                        int bytesLeft = len - i;
+                        char lastChar = source.charAt(len - 1 + off);
+                        if (b4Posn == 0 || b4Posn == 1) {
+                            throw new Base64DecoderException(
+                                    "invalid padding byte '=' at byte offset " + i);
+                        } else if ((b4Posn == 3 && bytesLeft > 2)
+                                || (b4Posn == 4 && bytesLeft > 1)) {
+                            throw new Base64DecoderException(
+                                    "padding byte '=' falsely signals end of encoded value "
+                                            + "at offset " + i);
+                        } else if (lastChar != EQUALS_SIGN && lastChar != NEW_LINE) {
+                            throw new Base64DecoderException(
+                                    "encoded value has invalid trailing byte");
+                        }
+                        break;
+                    }
+
+                    switch (b4Posn++) {
+                        case 0: c0 = c; break;
+                        case 1: c1 = c; break;
+                        case 2: c2 = c; break;
+                        default: c3 = c; break;
+                    }
+                    if (b4Posn == 4) {
+                        int outBuff = (decodabet[c0] << 18)
+                                | (decodabet[c1] << 12)
+                                | (decodabet[c2] << 6)
+                                | decodabet[c3];
+
+                        destination[outBuffPosn++] = (byte) (outBuff >> 16);
+                        destination[outBuffPosn++] = (byte) (outBuff >> 8);
+                        destination[outBuffPosn++] = (byte) (outBuff);
+                        b4Posn = 0;
+                    }
+                }
+            } else {
+                throw new Base64DecoderException("Bad Base64 input character at " + i
+                        + ": " + (int) c + "(decimal)");
+            }
+        }
+
+        // same as in the byte array version, the rest of the group is taken
+        // as padded with equal signs
+        if (b4Posn != 0) {
+            if (b4Posn == 1) {
+                throw new Base64DecoderException("single trailing character at offset "
+                        + (len - 1));
+            }
+
+            int outBuff = (decodabet[c0] << 18) | (decodabet[c1] << 12);
+            if (b4Posn == 2) {
+                destination[outBuffPosn++] = (byte) (outBuff >>> 16);
+            } else {
+                outBuff |= decodabet[c2] << 6;
+                destination[outBuffPosn++] = (byte) (outBuff >>> 16);
+                destination[outBuffPosn++] = (byte) (outBuff >>> 8);
+            }
+        }
+
+        return outBuffPosn - destOffset;
     }
 
     /**
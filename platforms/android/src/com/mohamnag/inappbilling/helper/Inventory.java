@@ -1,35 +1,207 @@
 package com.mohamnag.inappbilling.helper;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import org.json.JSONArray;
 import org.json.JSONException;
 
 /**
  * Represents a block of information about in-app items. An Inventory is
  * returned by such methods as {@link IabHelper#queryInventory}.
+ *
+ * Inventory is safe to be used from several threads. Items are kept in
+ * concurrent indexes, so lookups by key never wait. Writers change the indexes
+ * in place while holding a lock, so a change costs in proportion to the items
+ * it touches and not to the size of the inventory.
+ *
+ * Lists and their serialized forms are copied from the indexes on first read
+ * after a change and kept until the next one. Each write marks its start and
+ * end on a sequence number, and a copy is only kept if no write has started
+ * or ended while it was made, so a list never shows half of a change that
+ * added or removed several items at once.
+ *
+ * Each change is compared to the previous state. Adding items which are
+ * already there unchanged does not count as change, and the actual changes are
+ * passed to the {@link ChangeListener}, if one is set.
  */
 public class Inventory {
 
-    Map<String, SkuDetails> mSkuMap = new HashMap<String, SkuDetails>();
-    Map<String, Purchase> mPurchaseMap = new HashMap<String, Purchase>();
+    /**
+     * Tries to copy a list without taking the lock, before waiting for the
+     * writers to let it copy.
+     */
+    private static final int OPTIMISTIC_READS = 4;
+
     String base64EncodedPublicKey;
 
+    private final Object writeLock = new Object();
+
+    private final Map<String, SkuDetails> mProductsBySku = new ConcurrentHashMap<String, SkuDetails>();
+
+    private final Map<String, Purchase> mPurchasesBySku = new ConcurrentHashMap<String, Purchase>();
+    private final Map<String, Purchase> mPurchasesByOrderId = new ConcurrentHashMap<String, Purchase>();
+    private final Map<String, Purchase> mPurchasesByToken = new ConcurrentHashMap<String, Purchase>();
+    private final Map<String, Set<String>> mSkusByItemType = new ConcurrentHashMap<String, Set<String>>();
+
+    /**
+     * Odd while the items are being changed, incremented at start and at end
+     * of each write.
+     */
+    private volatile long mProductsSeq = 0;
+    private volatile long mPurchasesSeq = 0;
+
+    /**
+     * Copies of the lists, for the sequence number they were made at.
+     */
+    private volatile Snapshot<SkuDetails> mProductsSnapshot;
+    private volatile Snapshot<Purchase> mPurchasesSnapshot;
+
+    /**
+     * Counts changes, every change of products or purchases gets a new value.
+     */
+    private long mVersion = 0;
+    private volatile long mProductsVersion = 0;
+    private volatile long mPurchasesVersion = 0;
+
+    private volatile ChangeListener mListener;
+
+    /**
+     * Receives the changes made to inventory. It is called while the
+     * inventory is locked for writing, so in the same order the changes were
+     * made, and shall return quickly.
+     */
+    public interface ChangeListener {
+
+        void onInventoryChanged(InventoryChanges changes);
+    }
+
+    /**
+     * A list of items as they were between two writes, never changed once
+     * made.
+     */
+    private static class Snapshot<T> {
+
+        final long seq;
+        final List<T> items;
+
+        /**
+         * Serialized form of the list, built on first read.
+         */
+        volatile String json;
+
+        /**
+         * Binary form of the list, built on first read.
+         */
+        volatile byte[] binary;
+
+        Snapshot(long seq, List<T> items) {
+            this.seq = seq;
+            this.items = Collections.unmodifiableList(items);
+        }
+    }
+
     public Inventory(String licenceKey) {
         base64EncodedPublicKey = licenceKey;
     }
 
+    /**
+     * Sets the listener receiving all the following changes, null to remove
+     * it. The listener first receives a reset with the current content, before
+     * any other change can be made.
+     */
+    public void setChangeListener(ChangeListener listener) {
+        synchronized (writeLock) {
+            mListener = listener;
+
+            if (listener != null) {
+                InventoryChanges content = new InventoryChanges(true);
+                content.addedProducts.addAll(mProductsBySku.values());
+                content.addedPurchases.addAll(mPurchasesBySku.values());
+                listener.onInventoryChanged(content);
+            }
+        }
+    }
+
     /**
      * Returns the listing details for an in-app product.
      */
     public SkuDetails getSkuDetails(String sku) {
-        return mSkuMap.get(sku);
+        return mProductsBySku.get(sku);
     }
 
     public void addSkuDetails(SkuDetails sku) {
-        mSkuMap.put(sku.getSku(), sku);
+        addSkuDetails(Collections.singletonList(sku));
+    }
+
+    /**
+     * Adds or replaces the details of several products in one step.
+     */
+    public void addSkuDetails(Collection<SkuDetails> skus) {
+        if (skus.isEmpty()) {
+            return;
+        }
+
+        synchronized (writeLock) {
+            InventoryChanges changes = new InventoryChanges();
+            for (SkuDetails sku : skus) {
+                SkuDetails previous = mProductsBySku.get(sku.getSku());
+                if (previous == null) {
+                    changes.addedProducts.add(sku);
+                }
+                else if (!equal(previous.getOriginalJson(), sku.getOriginalJson())) {
+                    changes.changedProducts.add(sku);
+                }
+            }
+
+            if (changes.isEmpty()) {
+                // keep the current copy and its serialized form
+                return;
+            }
+
+            mProductsSeq++;
+            for (SkuDetails sku : skus) {
+                mProductsBySku.put(sku.getSku(), sku);
+            }
+            mProductsVersion = ++mVersion;
+            mProductsSeq++;
+
+            notifyListener(changes);
+        }
+    }
+
+    /**
+     * Removes the details of several products in one step, for example the
+     * ones store does not return anymore.
+     */
+    public void eraseSkuDetails(Collection<String> skus) {
+        synchronized (writeLock) {
+            InventoryChanges changes = new InventoryChanges();
+            for (String sku : skus) {
+                SkuDetails product = mProductsBySku.get(sku);
+                if (product != null && !changes.removedProducts.contains(product)) {
+                    changes.removedProducts.add(product);
+                }
+            }
+
+            if (changes.isEmpty()) {
+                return;
+            }
+
+            mProductsSeq++;
+            for (SkuDetails product : changes.removedProducts) {
+                mProductsBySku.remove(product.getSku());
+            }
+            mProductsVersion = ++mVersion;
+            mProductsSeq++;
+
+            notifyListener(changes);
+        }
     }
 
     /**
@@ -37,31 +209,33 @@ public class Inventory {
      * purchase.
      */
     public Purchase getPurchase(String sku) {
-        return mPurchaseMap.get(sku);
+        return mPurchasesBySku.get(sku);
     }
-    
+
     public Purchase getPurchaseByOrderId(String id) {
-        for(Purchase purchase : mPurchaseMap.values()) {
-            if(id.equals(purchase.getOrderId())) {
-                return purchase;
-            }
-        }
-        
-        return null;
+        return isEmpty(id) ? null : mPurchasesByOrderId.get(id);
+    }
+
+    /**
+     * Returns purchase information for a given purchase token, or null if
+     * there is no such purchase.
+     */
+    public Purchase getPurchaseByToken(String token) {
+        return isEmpty(token) ? null : mPurchasesByToken.get(token);
     }
 
     /**
      * Returns whether or not there exists a purchase of the given product.
      */
     public boolean hasPurchase(String sku) {
-        return mPurchaseMap.containsKey(sku);
+        return mPurchasesBySku.containsKey(sku);
     }
 
     /**
      * Return whether or not details about the given product are available.
      */
     public boolean hasDetails(String sku) {
-        return mSkuMap.containsKey(sku);
+        return mProductsBySku.containsKey(sku);
     }
 
     /**
@@ -73,15 +247,42 @@ public class Inventory {
      * Inventory you already have is quicker than querying for a new Inventory.
      */
     public void erasePurchase(String sku) {
-        if (mPurchaseMap.containsKey(sku)) {
-            mPurchaseMap.remove(sku);
+        erasePurchases(Collections.singletonList(sku));
+    }
+
+    /**
+     * Erases several purchases (locally) in one step, given their product IDs.
+     */
+    public void erasePurchases(Collection<String> skus) {
+        synchronized (writeLock) {
+            InventoryChanges changes = new InventoryChanges();
+            for (String sku : skus) {
+                Purchase purchase = mPurchasesBySku.get(sku);
+                if (purchase != null && !changes.removedPurchases.contains(purchase)) {
+                    changes.removedPurchases.add(purchase);
+                }
+            }
+
+            if (changes.isEmpty()) {
+                return;
+            }
+
+            mPurchasesSeq++;
+            for (Purchase purchase : changes.removedPurchases) {
+                removePurchase(purchase.getSku());
+            }
+            mPurchasesVersion = ++mVersion;
+            mPurchasesSeq++;
+
+            notifyListener(changes);
         }
     }
-    
+
     public void erasePurchaseByOrderId(String id) {
-        for(Purchase purchase : mPurchaseMap.values()) {
-            if(id.equals(purchase.getOrderId())) {
-                mPurchaseMap.remove(purchase.getSku());
+        synchronized (writeLock) {
+            Purchase purchase = getPurchaseByOrderId(id);
+            if (purchase != null) {
+                erasePurchase(purchase.getSku());
             }
         }
     }
@@ -90,34 +291,35 @@ public class Inventory {
      * Returns a list of all owned product IDs.
      */
     public List<String> getAllOwnedSkus() {
-        return new ArrayList<String>(mPurchaseMap.keySet());
+        List<Purchase> purchases = purchasesSnapshot().items;
+        List<String> ret = new ArrayList<String>(purchases.size());
+        for (Purchase purchase : purchases) {
+            ret.add(purchase.getSku());
+        }
+
+        return ret;
     }
 
     /**
      * Returns a list of all owned product IDs of a given type
      */
     List<String> getAllOwnedSkus(String itemType) {
-        List<String> result = new ArrayList<String>();
-        for (Purchase p : mPurchaseMap.values()) {
-            if (mSkuMap.get(p.getSku()).getType().equals(itemType)) {
-                result.add(p.getSku());
-            }
-        }
-        return result;
+        Set<String> skus = mSkusByItemType.get(itemType);
+        return skus == null ? new ArrayList<String>() : new ArrayList<String>(skus);
     }
 
     /**
      * Returns a list of all purchases.
      */
     public ArrayList<Purchase> getAllPurchases() {
-        return new ArrayList<Purchase>(mPurchaseMap.values());
+        return new ArrayList<Purchase>(purchasesSnapshot().items);
     }
 
     /**
      * Returns a list of all products.
      */
     public List<SkuDetails> getAllProducts() {
-        return new ArrayList<SkuDetails>(mSkuMap.values());
+        return new ArrayList<SkuDetails>(productsSnapshot().items);
     }
 
     /**
@@ -126,37 +328,323 @@ public class Inventory {
      * @return
      */
     public JSONArray getAllProductsJSON() throws JSONException {
-        JSONArray jsonProductDetailsList = new JSONArray();
-        for (SkuDetails product : mSkuMap.values()) {
-            jsonProductDetailsList.put(product.toJson());
+        return getAllProductsJSON(productsSnapshot());
+    }
+
+    /**
+     * Returns the products loaded in inventory as a serialized JSON array. The
+     * string is built once after each change and reused until the next one.
+     *
+     * @return
+     * @throws JSONException
+     */
+    public String getAllProductsJSONString() throws JSONException {
+        Snapshot<SkuDetails> snapshot = productsSnapshot();
+        String ret = snapshot.json;
+        if (ret == null) {
+            // a concurrent reader may do the same, both results are equal
+            ret = getAllProductsJSON(snapshot).toString();
+            snapshot.json = ret;
+        }
+        return ret;
+    }
+
+    private static JSONArray getAllProductsJSON(Snapshot<SkuDetails> snapshot) throws JSONException {
+        JSONArray ret = new JSONArray();
+        for (SkuDetails product : snapshot.items) {
+            ret.put(product.toJson());
         }
 
-        return jsonProductDetailsList;
+        return ret;
     }
-    
+
+    /**
+     * Returns the products loaded in inventory encoded by
+     * {@link BinaryEncoder}, built once after each change like the JSON
+     * string.
+     *
+     * @return
+     */
+    public byte[] getAllProductsBinary() {
+        Snapshot<SkuDetails> snapshot = productsSnapshot();
+        byte[] ret = snapshot.binary;
+        if (ret == null) {
+            ret = BinaryEncoder.encodeProducts(snapshot.items);
+            snapshot.binary = ret;
+        }
+        return ret;
+    }
+
     /**
      * Builds up a JSON array of purchases loaded in inventory
      *
      * @return
      */
     public JSONArray getAllPurchasesJSON() throws JSONException {
-        JSONArray jsonProductDetailsList = new JSONArray();
-        for (Purchase purchase : mPurchaseMap.values()) {
-            jsonProductDetailsList.put(purchase.toJavaScriptJson());
+        return getAllPurchasesJSON(purchasesSnapshot());
+    }
+
+    private static JSONArray getAllPurchasesJSON(Snapshot<Purchase> snapshot) throws JSONException {
+        JSONArray ret = new JSONArray();
+        for (Purchase purchase : snapshot.items) {
+            ret.put(purchase.toJavaScriptJson());
         }
 
-        return jsonProductDetailsList;
+        return ret;
+    }
+
+    /**
+     * Returns the purchases loaded in inventory as a serialized JSON array. The
+     * string is built once after each change and reused until the next one.
+     *
+     * @return
+     * @throws JSONException
+     */
+    public String getAllPurchasesJSONString() throws JSONException {
+        Snapshot<Purchase> snapshot = purchasesSnapshot();
+        String ret = snapshot.json;
+        if (ret == null) {
+            // a concurrent reader may do the same, both results are equal
+            ret = getAllPurchasesJSON(snapshot).toString();
+            snapshot.json = ret;
+        }
+        return ret;
+    }
+
+    /**
+     * Returns a number which changes whenever products are added, replaced or
+     * removed, to cheaply tell whether the list has changed since it was last
+     * read.
+     */
+    public long getProductsVersion() {
+        return mProductsVersion;
+    }
+
+    /**
+     * Returns a number which changes whenever purchases are added or removed.
+     */
+    public long getPurchasesVersion() {
+        return mPurchasesVersion;
     }
 
     public int getProductCount() {
-        return mSkuMap.size();
+        return mProductsBySku.size();
     }
 
     public int getPurchaseCount() {
-        return mPurchaseMap.size();
+        return mPurchasesBySku.size();
     }
 
     public void addPurchase(Purchase p) {
-        mPurchaseMap.put(p.getSku(), p);
+        addPurchases(Collections.singletonList(p));
+    }
+
+    /**
+     * Adds or replaces several purchases in one step.
+     */
+    public void addPurchases(Collection<Purchase> purchases) {
+        if (purchases.isEmpty()) {
+            return;
+        }
+
+        synchronized (writeLock) {
+            InventoryChanges changes = new InventoryChanges();
+            comparePurchases(purchases, changes);
+
+            if (changes.isEmpty()) {
+                return;
+            }
+
+            mPurchasesSeq++;
+            for (Purchase p : purchases) {
+                putPurchase(p);
+            }
+            mPurchasesVersion = ++mVersion;
+            mPurchasesSeq++;
+
+            notifyListener(changes);
+        }
+    }
+
+    /**
+     * Replaces all the purchases of an item type with the given ones, the
+     * purchases of this type which are not in the list are removed. Use this
+     * when the full list of owned items of a type is loaded.
+     */
+    public void replacePurchases(String itemType, Collection<Purchase> purchases) {
+        synchronized (writeLock) {
+            InventoryChanges changes = new InventoryChanges();
+            comparePurchases(purchases, changes);
+
+            Set<String> kept = new HashSet<String>();
+            for (Purchase p : purchases) {
+                kept.add(p.getSku());
+            }
+
+            Set<String> owned = mSkusByItemType.get(itemType);
+            if (owned != null) {
+                for (String sku : owned) {
+                    if (!kept.contains(sku)) {
+                        changes.removedPurchases.add(mPurchasesBySku.get(sku));
+                    }
+                }
+            }
+
+            if (changes.isEmpty()) {
+                return;
+            }
+
+            mPurchasesSeq++;
+            for (Purchase p : changes.removedPurchases) {
+                removePurchase(p.getSku());
+            }
+            for (Purchase p : purchases) {
+                putPurchase(p);
+            }
+            mPurchasesVersion = ++mVersion;
+            mPurchasesSeq++;
+
+            notifyListener(changes);
+        }
+    }
+
+    /**
+     * Finds out which of the purchases are new or different from the ones in
+     * inventory.
+     */
+    private void comparePurchases(Collection<Purchase> purchases, InventoryChanges changes) {
+        for (Purchase p : purchases) {
+            Purchase previous = mPurchasesBySku.get(p.getSku());
+            if (previous == null) {
+                changes.addedPurchases.add(p);
+            }
+            else if (!equal(previous.getItemType(), p.getItemType())
+                     || !equal(previous.getOriginalJson(), p.getOriginalJson())
+                     || !equal(previous.getSignature(), p.getSignature())) {
+                changes.changedPurchases.add(p);
+            }
+        }
+    }
+
+    /**
+     * Puts a purchase into all indexes. Call only while holding the lock.
+     */
+    private void putPurchase(Purchase p) {
+        Purchase previous = mPurchasesBySku.put(p.getSku(), p);
+        if (previous != null) {
+            unindex(previous);
+        }
+
+        // test purchases have no order id, these are only found by sku
+        if (!isEmpty(p.getOrderId())) {
+            mPurchasesByOrderId.put(p.getOrderId(), p);
+        }
+        if (!isEmpty(p.getToken())) {
+            mPurchasesByToken.put(p.getToken(), p);
+        }
+
+        Set<String> skus = mSkusByItemType.get(p.getItemType());
+        if (skus == null) {
+            skus = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            mSkusByItemType.put(p.getItemType(), skus);
+        }
+        skus.add(p.getSku());
+    }
+
+    /**
+     * Removes a purchase from all indexes. Call only while holding the lock.
+     */
+    private void removePurchase(String sku) {
+        Purchase purchase = mPurchasesBySku.remove(sku);
+        if (purchase != null) {
+            unindex(purchase);
+        }
+    }
+
+    /**
+     * Removes a purchase from secondary indexes, only if it is the one
+     * indexed there.
+     */
+    private void unindex(Purchase p) {
+        if (!isEmpty(p.getOrderId()) && mPurchasesByOrderId.get(p.getOrderId()) == p) {
+            mPurchasesByOrderId.remove(p.getOrderId());
+        }
+        if (!isEmpty(p.getToken()) && mPurchasesByToken.get(p.getToken()) == p) {
+            mPurchasesByToken.remove(p.getToken());
+        }
+
+        Set<String> skus = mSkusByItemType.get(p.getItemType());
+        if (skus != null) {
+            skus.remove(p.getSku());
+        }
+    }
+
+    private Snapshot<SkuDetails> productsSnapshot() {
+        Snapshot<SkuDetails> ret = mProductsSnapshot;
+        if (ret != null && ret.seq == mProductsSeq) {
+            return ret;
+        }
+
+        for (int i = 0; i < OPTIMISTIC_READS; i++) {
+            long seq = mProductsSeq;
+            if ((seq & 1) == 0) {
+                List<SkuDetails> items = new ArrayList<SkuDetails>(mProductsBySku.values());
+                if (seq == mProductsSeq) {
+                    ret = new Snapshot<SkuDetails>(seq, items);
+                    mProductsSnapshot = ret;
+                    return ret;
+                }
+            }
+            Thread.yield();
+        }
+
+        // writers keep changing, copy between two of them
+        synchronized (writeLock) {
+            ret = new Snapshot<SkuDetails>(mProductsSeq, new ArrayList<SkuDetails>(mProductsBySku.values()));
+            mProductsSnapshot = ret;
+            return ret;
+        }
+    }
+
+    private Snapshot<Purchase> purchasesSnapshot() {
+        Snapshot<Purchase> ret = mPurchasesSnapshot;
+        if (ret != null && ret.seq == mPurchasesSeq) {
+            return ret;
+        }
+
+        for (int i = 0; i < OPTIMISTIC_READS; i++) {
+            long seq = mPurchasesSeq;
+            if ((seq & 1) == 0) {
+                List<Purchase> items = new ArrayList<Purchase>(mPurchasesBySku.values());
+                if (seq == mPurchasesSeq) {
+                    ret = new Snapshot<Purchase>(seq, items);
+                    mPurchasesSnapshot = ret;
+                    return ret;
+                }
+            }
+            Thread.yield();
+        }
+
+        // writers keep changing, copy between two of them
+        synchronized (writeLock) {
+            ret = new Snapshot<Purchase>(mPurchasesSeq, new ArrayList<Purchase>(mPurchasesBySku.values()));
+            mPurchasesSnapshot = ret;
+            return ret;
+        }
+    }
+
+    private void notifyListener(InventoryChanges changes) {
+        ChangeListener listener = mListener;
+        if (listener != null) {
+            listener.onInventoryChanged(changes);
+        }
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static boolean isEmpty(String value) {
+        return value == null || value.length() == 0;
     }
 }
@@ -8,6 +8,13 @@ import org.json.JSONObject;
  */
 public class Purchase {
 
+    /**
+     * Same as InAppBillingPlugin.BILLING_ITEM_TYPE_INAPP, kept here so helper
+     * package does not depend on the cordova plugin.
+     */
+    static final String ITEM_TYPE_INAPP = "inapp";
+
+    String mItemType;
     String mOrderId;
     String mPackageName;
     String mSku;
@@ -19,18 +26,38 @@ public class Purchase {
     String mSignature;
 
     public Purchase(String jsonPurchaseInfo, String signature) throws JSONException {
+        this(ITEM_TYPE_INAPP, jsonPurchaseInfo, signature);
+    }
+
+    public Purchase(String itemType, String jsonPurchaseInfo, String signature) throws JSONException {
+        mItemType = itemType;
         mOriginalJson = jsonPurchaseInfo;
-        JSONObject o = new JSONObject(mOriginalJson);
-        mOrderId = o.optString("orderId");
-        mPackageName = o.optString("packageName");
-        mSku = o.optString("productId");
-        mPurchaseTime = o.optLong("purchaseTime");
-        mPurchaseState = o.optInt("purchaseState");
-        mDeveloperPayload = o.optString("developerPayload");
-        mToken = o.optString("token", o.optString("purchaseToken"));
+
+        // only a few fields are needed, read them without building a JSONObject
+        String[] fields = JsonFields.extract(mOriginalJson,
+                "orderId",
+                "packageName",
+                "productId",
+                "purchaseTime",
+                "purchaseState",
+                "developerPayload",
+                "token",
+                "purchaseToken"
+        );
+        mOrderId = JsonFields.orEmpty(fields[0]);
+        mPackageName = JsonFields.orEmpty(fields[1]);
+        mSku = JsonFields.orEmpty(fields[2]);
+        mPurchaseTime = JsonFields.toLong(fields[3]);
+        mPurchaseState = (int) JsonFields.toLong(fields[4]);
+        mDeveloperPayload = JsonFields.orEmpty(fields[5]);
+        mToken = fields[6] != null ? fields[6] : JsonFields.orEmpty(fields[7]);
         mSignature = signature;
     }
 
+    public String getItemType() {
+        return mItemType;
+    }
+
     public String getOrderId() {
         return mOrderId;
     }
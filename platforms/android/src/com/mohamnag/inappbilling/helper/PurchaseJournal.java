@@ -0,0 +1,360 @@
+package com.mohamnag.inappbilling.helper;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Keeps track of purchases on device, so a purchase is not lost if the app is
+ * killed while the purchase dialog of play store is open.
+ *
+ * Each step of a purchase is appended to a file as one JSON line and synced to
+ * disk before going on. Reading the file on next start gives the purchases
+ * which are still outstanding: initiated ones whose result never arrived and
+ * completed ones which were not closed (consumed or dropped) yet. Once most of
+ * the lines belong to closed purchases, the file is rewritten with only the
+ * outstanding ones.
+ */
+public class PurchaseJournal {
+
+    static final String OP_INITIATED = "initiated";
+    static final String OP_COMPLETED = "completed";
+    static final String OP_CLOSED = "closed";
+
+    private static final String KEY_OP = "op";
+    private static final String KEY_SKU = "sku";
+    private static final String KEY_ITEM_TYPE = "itemType";
+    private static final String KEY_JSON = "json";
+    private static final String KEY_SIGNATURE = "signature";
+    private static final String KEY_REASON = "reason";
+    private static final String KEY_TIME = "time";
+
+    private static final String ENCODING = "UTF-8";
+
+    /**
+     * The file is not compacted while it has fewer lines than this.
+     */
+    static final int COMPACT_MIN_RECORDS = 64;
+
+    private final File file;
+
+    private Map<String, Entry> outstanding;
+    private int records = 0;
+
+    /**
+     * Whether the last line in file was cut off, the next record has to start
+     * on a new line then.
+     */
+    private boolean brokenTail = false;
+
+    /**
+     * A purchase which is not closed yet.
+     */
+    public static class Entry {
+
+        final String sku;
+        final String itemType;
+        final String json;
+        final String signature;
+
+        Entry(String sku, String itemType, String json, String signature) {
+            this.sku = sku;
+            this.itemType = itemType;
+            this.json = json;
+            this.signature = signature;
+        }
+
+        public String getSku() {
+            return sku;
+        }
+
+        public String getItemType() {
+            return itemType;
+        }
+
+        /**
+         * Whether the purchase was completed, otherwise its result is unknown.
+         */
+        public boolean isCompleted() {
+            return json != null;
+        }
+
+        /**
+         * Returns the completed purchase.
+         *
+         * @return
+         * @throws JSONException
+         */
+        public Purchase toPurchase() throws JSONException {
+            return new Purchase(itemType, json, signature);
+        }
+    }
+
+    public PurchaseJournal(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Returns the purchases which are initiated or completed, but not closed.
+     *
+     * @return
+     */
+    public synchronized List<Entry> getOutstanding() {
+        return new ArrayList<Entry>(load().values());
+    }
+
+    /**
+     * Records that the purchase dialog is about to be shown.
+     *
+     * @param sku
+     * @param itemType
+     */
+    public synchronized void initiated(String sku, String itemType) {
+        try {
+            JSONObject record = record(OP_INITIATED, sku);
+            record.put(KEY_ITEM_TYPE, itemType);
+
+            load();
+            append(Collections.singletonList(record));
+            outstanding.put(sku, new Entry(sku, itemType, null, null));
+        }
+        catch (JSONException ex) {
+            Logger.getLogger(PurchaseJournal.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+
+    /**
+     * Records a successful purchase.
+     *
+     * @param purchase
+     */
+    public synchronized void completed(Purchase purchase) {
+        try {
+            JSONObject record = record(OP_COMPLETED, purchase.getSku());
+            record.put(KEY_ITEM_TYPE, purchase.getItemType());
+            record.put(KEY_JSON, purchase.getOriginalJson());
+            record.put(KEY_SIGNATURE, purchase.getSignature());
+
+            load();
+            append(Collections.singletonList(record));
+            outstanding.put(purchase.getSku(), new Entry(
+                    purchase.getSku(),
+                    purchase.getItemType(),
+                    purchase.getOriginalJson(),
+                    purchase.getSignature()
+            ));
+        }
+        catch (JSONException ex) {
+            Logger.getLogger(PurchaseJournal.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+
+    /**
+     * Records that nothing is outstanding for the product anymore, because it
+     * was consumed, cancelled, failed or is not owned anymore.
+     *
+     * @param sku
+     * @param reason
+     */
+    public void closed(String sku, String reason) {
+        closed(Collections.singletonList(sku), reason);
+    }
+
+    /**
+     * Same as {@link #closed(String, String)} for several products, with only
+     * one write to disk.
+     *
+     * @param skus
+     * @param reason
+     */
+    public synchronized void closed(Collection<String> skus, String reason) {
+        try {
+            List<JSONObject> closing = new ArrayList<JSONObject>();
+            for (String sku : skus) {
+                if (load().containsKey(sku)) {
+                    JSONObject record = record(OP_CLOSED, sku);
+                    record.put(KEY_REASON, reason);
+                    closing.add(record);
+                }
+            }
+
+            if (closing.isEmpty()) {
+                return;
+            }
+
+            append(closing);
+            for (String sku : skus) {
+                load().remove(sku);
+            }
+            compactIfNeeded();
+        }
+        catch (JSONException ex) {
+            Logger.getLogger(PurchaseJournal.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+
+    private static JSONObject record(String op, String sku) throws JSONException {
+        JSONObject ret = new JSONObject();
+        ret.put(KEY_OP, op);
+        ret.put(KEY_SKU, sku);
+        ret.put(KEY_TIME, System.currentTimeMillis());
+
+        return ret;
+    }
+
+    /**
+     * Appends the records to the file, one per line, and waits until they are
+     * on disk.
+     */
+    private void append(List<JSONObject> appended) {
+        StringBuilder lines = new StringBuilder();
+        if (brokenTail) {
+            lines.append('\n');
+        }
+        for (JSONObject record : appended) {
+            lines.append(record.toString()).append('\n');
+        }
+
+        try {
+            FileOutputStream out = new FileOutputStream(file, true);
+            try {
+                out.write(lines.toString().getBytes(ENCODING));
+                out.getFD().sync();
+                records += appended.size();
+                brokenTail = false;
+            }
+            finally {
+                out.close();
+            }
+        }
+        catch (IOException ex) {
+            Logger.getLogger(PurchaseJournal.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+
+    /**
+     * Reads the file on first access and replays its lines. A broken line, as
+     * left by a crash while appending, is skipped.
+     *
+     * @return
+     */
+    private Map<String, Entry> load() {
+        if (outstanding != null) {
+            return outstanding;
+        }
+
+        outstanding = new LinkedHashMap<String, Entry>();
+        if (!file.exists()) {
+            return outstanding;
+        }
+
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), ENCODING));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    records++;
+                    try {
+                        replay(new JSONObject(line));
+                        brokenTail = false;
+                    }
+                    catch (JSONException ex) {
+                        // skip this line only
+                        brokenTail = true;
+                    }
+                }
+            }
+            finally {
+                reader.close();
+            }
+        }
+        catch (IOException ex) {
+            Logger.getLogger(PurchaseJournal.class.getName()).log(Level.WARNING, null, ex);
+        }
+
+        compactIfNeeded();
+
+        return outstanding;
+    }
+
+    private void replay(JSONObject record) {
+        String op = record.optString(KEY_OP);
+        String sku = record.optString(KEY_SKU);
+
+        if (OP_INITIATED.equals(op)) {
+            outstanding.put(sku, new Entry(sku, record.optString(KEY_ITEM_TYPE), null, null));
+        }
+        else if (OP_COMPLETED.equals(op)) {
+            outstanding.put(sku, new Entry(
+                    sku,
+                    record.optString(KEY_ITEM_TYPE),
+                    record.optString(KEY_JSON),
+                    record.optString(KEY_SIGNATURE)
+            ));
+        }
+        else if (OP_CLOSED.equals(op)) {
+            outstanding.remove(sku);
+        }
+    }
+
+    /**
+     * Rewrites the file with only the outstanding purchases, once most of its
+     * lines are about closed ones. The new file is synced before it replaces
+     * the old one, so a crash leaves one of them complete.
+     */
+    private void compactIfNeeded() {
+        if (records < COMPACT_MIN_RECORDS || records < 2 * outstanding.size()) {
+            return;
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            StringBuilder content = new StringBuilder();
+            for (Entry entry : outstanding.values()) {
+                JSONObject record = record(entry.isCompleted() ? OP_COMPLETED : OP_INITIATED, entry.sku);
+                record.put(KEY_ITEM_TYPE, entry.itemType);
+                if (entry.isCompleted()) {
+                    record.put(KEY_JSON, entry.json);
+                    record.put(KEY_SIGNATURE, entry.signature);
+                }
+                content.append(record.toString()).append('\n');
+            }
+
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(content.toString().getBytes(ENCODING));
+                out.getFD().sync();
+            }
+            finally {
+                out.close();
+            }
+
+            if (tmp.renameTo(file)) {
+                records = outstanding.size();
+                brokenTail = false;
+            }
+            else {
+                tmp.delete();
+            }
+        }
+        catch (IOException ex) {
+            Logger.getLogger(PurchaseJournal.class.getName()).log(Level.WARNING, null, ex);
+        }
+        catch (JSONException ex) {
+            Logger.getLogger(PurchaseJournal.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.mohamnag.inappbilling.helper;
+
+import org.json.JSONArray;
+
+/**
+ * A JSON array which is already serialized. PluginResult only calls toString
+ * on the arrays it gets, so handing one of these over sends the string as it
+ * is, instead of building and serializing the array for every call.
+ *
+ * This is only meant to be passed to PluginResult or CallbackContext, the
+ * items of the array can not be read or changed through it.
+ */
+public class SerializedJSONArray extends JSONArray {
+
+    private final String json;
+
+    /**
+     * @param json a valid serialized JSON array, it is not checked
+     */
+    public SerializedJSONArray(String json) {
+        this.json = json;
+    }
+
+    @Override
+    public String toString() {
+        return json;
+    }
+
+    @Override
+    public String toString(int indentSpaces) {
+        return json;
+    }
+}
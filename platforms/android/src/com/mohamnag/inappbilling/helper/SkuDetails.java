@@ -1,6 +1,5 @@
 package com.mohamnag.inappbilling.helper;
 
-import com.mohamnag.inappbilling.InAppBillingPlugin;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -9,6 +8,12 @@ import org.json.JSONObject;
  */
 public class SkuDetails {
 
+    /**
+     * Same as InAppBillingPlugin.BILLING_ITEM_TYPE_INAPP, kept here so helper
+     * package does not depend on the cordova plugin.
+     */
+    static final String ITEM_TYPE_INAPP = "inapp";
+
     String mItemType;
     
     String id;
@@ -17,11 +22,11 @@ public class SkuDetails {
     String title;
     String description;
     String json;
-    int priceMicro;
+    long priceMicro;
     String currency;
 
     public SkuDetails(String jsonSkuDetails) throws JSONException {
-        this(InAppBillingPlugin.BILLING_ITEM_TYPE_INAPP, jsonSkuDetails);
+        this(ITEM_TYPE_INAPP, jsonSkuDetails);
     }
 
     public SkuDetails(String itemType, String json) throws JSONException {
@@ -29,14 +34,23 @@ public class SkuDetails {
         
         this.json = json;
         
-        JSONObject o = new JSONObject(json);
-        id = o.optString("productId");
-        type = o.optString("type");
-        fromattedPrice = o.optString("price");
-        title = o.optString("title");
-        description = o.optString("description");
-        priceMicro = o.optInt("price_amount_micros");
-        currency = o.optString("price_currency_code");
+        // only a few fields are needed, read them without building a JSONObject
+        String[] fields = JsonFields.extract(json,
+                "productId",
+                "type",
+                "price",
+                "title",
+                "description",
+                "price_amount_micros",
+                "price_currency_code"
+        );
+        id = JsonFields.orEmpty(fields[0]);
+        type = JsonFields.orEmpty(fields[1]);
+        fromattedPrice = JsonFields.orEmpty(fields[2]);
+        title = JsonFields.orEmpty(fields[3]);
+        description = JsonFields.orEmpty(fields[4]);
+        priceMicro = JsonFields.toLong(fields[5]);
+        currency = JsonFields.orEmpty(fields[6]);
     }
 
     public String getSku() {
@@ -59,6 +73,38 @@ public class SkuDetails {
         return description;
     }
 
+    public String getItemType() {
+        return mItemType;
+    }
+
+    public long getPriceMicros() {
+        return priceMicro;
+    }
+
+    public String getCurrency() {
+        return currency;
+    }
+
+    public String getOriginalJson() {
+        return json;
+    }
+
+    /**
+     * Whether the other details show the same price as this one.
+     *
+     * @param other
+     * @return
+     */
+    public boolean hasSamePrice(SkuDetails other) {
+        return priceMicro == other.priceMicro
+               && equal(currency, other.currency)
+               && equal(fromattedPrice, other.fromattedPrice);
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
     @Override
     public String toString() {
         return "SkuDetails:" + json;
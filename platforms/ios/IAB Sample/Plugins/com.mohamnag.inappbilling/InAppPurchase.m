@@ -51,6 +51,14 @@
 #define ERR_PRODUCT_NOT_LOADED          (ERROR_CODES_BASE + 21)
 // invalid product ids passed
 #define ERR_INVALID_PRODUCT_ID          (ERROR_CODES_BASE + 22)
+// invalid purchase id passed
+#define ERR_INVALID_PURCHASE_ID         (ERROR_CODES_BASE + 23)
+// item requested to be bought is already owned
+#define ERR_PURCHASE_OWNED_ITEM         (ERROR_CODES_BASE + 24)
+// too many billing requests are already waiting to be processed (android only for now)
+#define ERR_BILLING_QUEUE_FULL          (ERROR_CODES_BASE + 25)
+// billing service has disconnected and did not come back in time (android only)
+#define ERR_SERVICE_DISCONNECTED        (ERROR_CODES_BASE + 26)
 
 
 
@@ -109,6 +117,10 @@ static NSString *jsErrorCodeAsString(NSInteger code) {
         case ERR_PAYMENT_INVALID: return @"ERR_PAYMENT_INVALID";
         case ERR_PAYMENT_NOT_ALLOWED: return @"ERR_PAYMENT_NOT_ALLOWED";
         case ERR_UNKNOWN: return @"ERR_UNKNOWN";
+        case ERR_INVALID_PURCHASE_ID: return @"ERR_INVALID_PURCHASE_ID";
+        case ERR_PURCHASE_OWNED_ITEM: return @"ERR_PURCHASE_OWNED_ITEM";
+        case ERR_BILLING_QUEUE_FULL: return @"ERR_BILLING_QUEUE_FULL";
+        case ERR_SERVICE_DISCONNECTED: return @"ERR_SERVICE_DISCONNECTED";
     }
     return @"ERR_NONE";
 }
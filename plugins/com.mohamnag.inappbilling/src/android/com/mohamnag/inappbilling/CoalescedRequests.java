@@ -0,0 +1,116 @@
+/**
+ * In App Billing Plugin
+ *
+ * Details and more information under:
+ * https://github.com/mohamnag/InAppBilling/wiki
+ */
+package com.mohamnag.inappbilling;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.CordovaWebView;
+import org.apache.cordova.PluginResult;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Lets identical requests share one call to billing service. A request which
+ * arrives while an identical one is still waiting for its result is not run
+ * again, its callback gets the results of the one in flight instead.
+ *
+ * A request can be joined only until it sends its first result, a request
+ * joining later would miss the results (like pages of purchases) sent before.
+ */
+class CoalescedRequests {
+
+    private final CordovaWebView webView;
+
+    private final Map<String, SharedCallbackContext> inFlight = new HashMap<String, SharedCallbackContext>();
+
+    /**
+     * Number of calls answered by a request in flight, per action.
+     */
+    private final Map<String, Integer> savedCalls = new HashMap<String, Integer>();
+
+    CoalescedRequests(CordovaWebView webView) {
+        this.webView = webView;
+    }
+
+    /**
+     * Callback context of a request in flight, passes every result to all the
+     * callbacks which joined it.
+     */
+    private class SharedCallbackContext extends CallbackContext {
+
+        final String key;
+        final List<CallbackContext> callbacks = new ArrayList<CallbackContext>();
+
+        SharedCallbackContext(String key, CallbackContext callbackContext) {
+            super(callbackContext.getCallbackId(), webView);
+            this.key = key;
+            callbacks.add(callbackContext);
+        }
+
+        @Override
+        public void sendPluginResult(PluginResult pluginResult) {
+            List<CallbackContext> targets;
+
+            synchronized (CoalescedRequests.this) {
+                // no more joining after the first result
+                if (inFlight.get(key) == this) {
+                    inFlight.remove(key);
+                }
+                targets = new ArrayList<CallbackContext>(callbacks);
+            }
+
+            for (CallbackContext callbackContext : targets) {
+                callbackContext.sendPluginResult(pluginResult);
+            }
+        }
+    }
+
+    /**
+     * Joins the callback to an identical request in flight, if there is one.
+     *
+     * @param action name of the action, used for metrics
+     * @param key identifies the request, requests with equal keys are
+     * considered identical
+     * @param callbackContext
+     * @return null if the callback joined a request in flight and nothing is
+     * left to do, otherwise the callback context the request shall be run
+     * with
+     */
+    synchronized CallbackContext join(String action, String key, CallbackContext callbackContext) {
+        SharedCallbackContext shared = inFlight.get(key);
+
+        if (shared != null) {
+            shared.callbacks.add(callbackContext);
+
+            Integer count = savedCalls.get(action);
+            savedCalls.put(action, count == null ? 1 : count + 1);
+            return null;
+        }
+
+        shared = new SharedCallbackContext(key, callbackContext);
+        inFlight.put(key, shared);
+        return shared;
+    }
+
+    /**
+     * Returns number of calls saved per action.
+     *
+     * @return
+     * @throws JSONException
+     */
+    synchronized JSONObject getStats() throws JSONException {
+        JSONObject ret = new JSONObject();
+        for (Map.Entry<String, Integer> entry : savedCalls.entrySet()) {
+            ret.put(entry.getKey(), entry.getValue());
+        }
+
+        return ret;
+    }
+}
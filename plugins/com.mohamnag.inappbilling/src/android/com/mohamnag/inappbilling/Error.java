@@ -6,8 +6,11 @@
  */
 package com.mohamnag.inappbilling;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -22,19 +25,74 @@ public class Error {
     private static final String KEY_NAME_MESSAGE = "msg";
     private static final String KEY_NAME_ERROR = "errorCode";
 
+    private static final String KEY_NAME_CAUSES = "causes";
+
     private final String message;
     private final int errorCode;
+    private final Map<String, Object> details = new LinkedHashMap<String, Object>();
     
     public Error(int errorCode, String message) {
         this.errorCode = errorCode;
         this.message = message;
     }
+
+    public int getErrorCode() {
+        return errorCode;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * Attaches an extra piece of information to this error, like the item
+     * type a failed query was made for.
+     *
+     * @param key
+     * @param value
+     * @return this error
+     */
+    public Error withDetail(String key, Object value) {
+        details.put(key, value);
+        return this;
+    }
+
+    /**
+     * Merges errors of several sub-requests of one operation. A single error is
+     * returned as it is, multiple ones are listed as causes of a new error.
+     *
+     * @param errorCode used only when there is more than one error
+     * @param message used only when there is more than one error
+     * @param errors
+     * @return null if there was no error
+     */
+    public static Error merge(int errorCode, String message, Iterable<Error> errors) {
+        JSONArray causes = new JSONArray();
+        Error first = null;
+
+        for (Error error : errors) {
+            if (first == null) {
+                first = error;
+            }
+            causes.put(error.toJavaScriptJSON());
+        }
+
+        if (first == null || causes.length() == 1) {
+            return first;
+        }
+
+        return new Error(errorCode, message).withDetail(KEY_NAME_CAUSES, causes);
+    }
     
     public JSONObject toJavaScriptJSON() {
         JSONObject ret = new JSONObject();
         try {
             ret.put(KEY_NAME_ERROR, errorCode);
             ret.put(KEY_NAME_MESSAGE, message);
+
+            for (Map.Entry<String, Object> detail : details.entrySet()) {
+                ret.put(detail.getKey(), detail.getValue());
+            }
         }
         catch (JSONException ex) {
             Logger.getLogger(InAppBillingPlugin.class.getName()).log(Level.WARNING, null, ex);
@@ -0,0 +1,396 @@
+/**
+ * In App Billing Plugin
+ *
+ * Details and more information under:
+ * https://github.com/mohamnag/InAppBilling/wiki
+ */
+package com.mohamnag.inappbilling;
+
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import com.android.vending.billing.IInAppBillingService;
+import com.mohamnag.inappbilling.helper.Base64;
+import com.mohamnag.inappbilling.helper.Base64DecoderException;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A stand-in for play store's billing service which runs inside the app, to
+ * measure and test the plugin without store, account or network. It is used
+ * instead of binding to play store when the preference
+ * android-iabplugin-fake-service names a fixture file in the app's assets
+ * and the app is debuggable.
+ *
+ * The fixture is a JSON object:
+ * <pre>
+ * {
+ *   "products": [ product details as returned by the store ],
+ *   "generatedProducts": 500,
+ *   "purchases": [ purchase data of items owned from start ],
+ *   "signingKey": "base64 PKCS#8 RSA private key, signs purchase data",
+ *   "pageSize": 100,
+ *   "subscriptionsSupported": true,
+ *   "latency": { "default": 50, "getPurchases": 200 },
+ *   "errors": { "getSkuDetails": { "responseCode": 6, "rate": 0.1 },
+ *               "consumePurchase": { "remoteException": true, "rate": 0.5 } }
+ * }
+ * </pre>
+ * Generated products are added to the given ones, as bulk_product_1 to
+ * bulk_product_N, to measure large catalogues without listing them all.
+ * Latency is in milliseconds and is spent on the calling thread, like a binder
+ * call would. An error is injected on the given rate (1 if not set) of calls to
+ * that method. Without a signing key purchases have an empty signature, so the
+ * licence key must not be set then. The licence key matching the signing key
+ * verifies the purchases like store's would.
+ *
+ * Buying does not show any dialog, the purchase is made right away and its
+ * result is taken by the plugin with {@link #takeBuyResult(String)} in place
+ * of the activity result.
+ */
+class FakeBillingService extends IInAppBillingService.Stub {
+
+    static final String METHOD_DEFAULT = "default";
+
+    private final Random random = new Random();
+
+    private final Map<String, JSONObject> products = new LinkedHashMap<String, JSONObject>();
+    private final Map<String, JSONObject> purchases = new LinkedHashMap<String, JSONObject>();
+    private final Map<String, Intent> buyResults = new HashMap<String, Intent>();
+
+    private final Map<String, Long> latency = new HashMap<String, Long>();
+    private final JSONObject errors;
+    private final PrivateKey signingKey;
+    private final int pageSize;
+    private final boolean subscriptionsSupported;
+
+    private int orderCount = 0;
+
+    FakeBillingService(JSONObject fixture) throws JSONException, GeneralSecurityException, Base64DecoderException {
+        JSONArray productList = fixture.optJSONArray("products");
+        for (int i = 0; productList != null && i < productList.length(); i++) {
+            JSONObject product = productList.getJSONObject(i);
+            products.put(product.getString("productId"), product);
+        }
+
+        int generated = fixture.optInt("generatedProducts", 0);
+        for (int i = 1; i <= generated; i++) {
+            JSONObject product = new JSONObject();
+            product.put("productId", "bulk_product_" + i);
+            product.put("type", "inapp");
+            product.put("price", "$" + i + ".99");
+            product.put("price_amount_micros", i * 1000000L + 990000L);
+            product.put("price_currency_code", "USD");
+            product.put("title", "Bulk product " + i);
+            product.put("description", "Generated product " + i + " for measuring large catalogues");
+            products.put(product.getString("productId"), product);
+        }
+
+        JSONArray purchaseList = fixture.optJSONArray("purchases");
+        for (int i = 0; purchaseList != null && i < purchaseList.length(); i++) {
+            JSONObject purchase = completePurchase(purchaseList.getJSONObject(i));
+            purchases.put(purchase.getString("productId"), purchase);
+        }
+
+        JSONObject latencies = fixture.optJSONObject("latency");
+        if (latencies != null) {
+            Iterator<?> methods = latencies.keys();
+            while (methods.hasNext()) {
+                String method = (String) methods.next();
+                latency.put(method, latencies.getLong(method));
+            }
+        }
+
+        String key = fixture.optString("signingKey", null);
+        if (key != null) {
+            signingKey = KeyFactory.getInstance("RSA").generatePrivate(new PKCS8EncodedKeySpec(Base64.decode(key)));
+        }
+        else {
+            signingKey = null;
+        }
+
+        errors = fixture.optJSONObject("errors");
+        pageSize = fixture.optInt("pageSize", 100);
+        subscriptionsSupported = fixture.optBoolean("subscriptionsSupported", true);
+    }
+
+    /**
+     * Reads the fixture from a stream, like the one of an asset.
+     *
+     * @param in is closed when done
+     * @return
+     * @throws IOException
+     * @throws JSONException
+     * @throws GeneralSecurityException
+     * @throws Base64DecoderException
+     */
+    static FakeBillingService fromStream(InputStream in) throws IOException, JSONException, GeneralSecurityException, Base64DecoderException {
+        try {
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = in.read(buffer)) >= 0) {
+                content.write(buffer, 0, count);
+            }
+
+            return new FakeBillingService(new JSONObject(content.toString("UTF-8")));
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    @Override
+    public int isBillingSupported(int apiVersion, String packageName, String type) throws RemoteException {
+        int error = call("isBillingSupported");
+        if (error != InAppBillingPlugin.BILLING_RESPONSE_RESULT_OK) {
+            return error;
+        }
+
+        if (InAppBillingPlugin.BILLING_ITEM_TYPE_SUBS.equals(type) && !subscriptionsSupported) {
+            return InAppBillingPlugin.BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE;
+        }
+
+        return InAppBillingPlugin.BILLING_RESPONSE_RESULT_OK;
+    }
+
+    @Override
+    public Bundle getSkuDetails(int apiVersion, String packageName, String type, Bundle skusBundle) throws RemoteException {
+        Bundle ret = new Bundle();
+        int error = call("getSkuDetails");
+        ret.putInt("RESPONSE_CODE", error);
+        if (error != InAppBillingPlugin.BILLING_RESPONSE_RESULT_OK) {
+            return ret;
+        }
+
+        ArrayList<String> details = new ArrayList<String>();
+        synchronized (this) {
+            for (String sku : skusBundle.getStringArrayList("ITEM_ID_LIST")) {
+                JSONObject product = products.get(sku);
+                if (product != null && type.equals(product.optString("type"))) {
+                    details.add(product.toString());
+                }
+            }
+        }
+
+        ret.putStringArrayList("DETAILS_LIST", details);
+        return ret;
+    }
+
+    @Override
+    public Bundle getBuyIntent(int apiVersion, String packageName, String sku, String type, String developerPayload) throws RemoteException {
+        Bundle ret = new Bundle();
+        int error = call("getBuyIntent");
+        if (error != InAppBillingPlugin.BILLING_RESPONSE_RESULT_OK) {
+            ret.putInt("RESPONSE_CODE", error);
+            return ret;
+        }
+
+        synchronized (this) {
+            JSONObject product = products.get(sku);
+            if (product == null || !type.equals(product.optString("type"))) {
+                ret.putInt("RESPONSE_CODE", InAppBillingPlugin.BILLING_RESPONSE_RESULT_ITEM_UNAVAILABLE);
+                return ret;
+            }
+            if (purchases.containsKey(sku)) {
+                ret.putInt("RESPONSE_CODE", InAppBillingPlugin.BILLING_RESPONSE_RESULT_ITEM_ALREADY_OWNED);
+                return ret;
+            }
+
+            try {
+                JSONObject purchase = new JSONObject();
+                purchase.put("productId", sku);
+                purchase.put("packageName", packageName);
+                purchase.put("developerPayload", developerPayload == null ? "" : developerPayload);
+                purchase = completePurchase(purchase);
+                purchases.put(sku, purchase);
+
+                String purchaseData = purchase.toString();
+                Intent result = new Intent();
+                result.putExtra("RESPONSE_CODE", InAppBillingPlugin.BILLING_RESPONSE_RESULT_OK);
+                result.putExtra("INAPP_PURCHASE_DATA", purchaseData);
+                result.putExtra("INAPP_DATA_SIGNATURE", sign(purchaseData));
+                buyResults.put(sku, result);
+            }
+            catch (JSONException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+
+        // no dialog to show, see takeBuyResult
+        ret.putInt("RESPONSE_CODE", InAppBillingPlugin.BILLING_RESPONSE_RESULT_OK);
+        return ret;
+    }
+
+    /**
+     * Returns the result the purchase dialog would have delivered for the last
+     * buy intent of the product.
+     *
+     * @param sku
+     * @return null if no buy intent was requested for it
+     */
+    synchronized Intent takeBuyResult(String sku) {
+        return buyResults.remove(sku);
+    }
+
+    @Override
+    public Bundle getPurchases(int apiVersion, String packageName, String type, String continuationToken) throws RemoteException {
+        Bundle ret = new Bundle();
+        int error = call("getPurchases");
+        ret.putInt("RESPONSE_CODE", error);
+        if (error != InAppBillingPlugin.BILLING_RESPONSE_RESULT_OK) {
+            return ret;
+        }
+
+        List<JSONObject> owned = new ArrayList<JSONObject>();
+        synchronized (this) {
+            for (JSONObject purchase : purchases.values()) {
+                JSONObject product = products.get(purchase.optString("productId"));
+                String purchaseType = product != null ? product.optString("type") : InAppBillingPlugin.BILLING_ITEM_TYPE_INAPP;
+                if (type.equals(purchaseType)) {
+                    owned.add(purchase);
+                }
+            }
+        }
+
+        int start = 0;
+        if (continuationToken != null) {
+            try {
+                start = Integer.parseInt(continuationToken);
+            }
+            catch (NumberFormatException ex) {
+                ret.putInt("RESPONSE_CODE", InAppBillingPlugin.BILLING_RESPONSE_RESULT_DEVELOPER_ERROR);
+                return ret;
+            }
+        }
+        int end = Math.min(start + pageSize, owned.size());
+
+        ArrayList<String> skus = new ArrayList<String>();
+        ArrayList<String> dataList = new ArrayList<String>();
+        ArrayList<String> signatures = new ArrayList<String>();
+        for (JSONObject purchase : owned.subList(Math.min(start, end), end)) {
+            String purchaseData = purchase.toString();
+            skus.add(purchase.optString("productId"));
+            dataList.add(purchaseData);
+            signatures.add(sign(purchaseData));
+        }
+
+        ret.putStringArrayList("INAPP_PURCHASE_ITEM_LIST", skus);
+        ret.putStringArrayList("INAPP_PURCHASE_DATA_LIST", dataList);
+        ret.putStringArrayList("INAPP_DATA_SIGNATURE_LIST", signatures);
+        if (end < owned.size()) {
+            ret.putString("INAPP_CONTINUATION_TOKEN", String.valueOf(end));
+        }
+
+        return ret;
+    }
+
+    @Override
+    public int consumePurchase(int apiVersion, String packageName, String purchaseToken) throws RemoteException {
+        int error = call("consumePurchase");
+        if (error != InAppBillingPlugin.BILLING_RESPONSE_RESULT_OK) {
+            return error;
+        }
+
+        synchronized (this) {
+            Iterator<JSONObject> owned = purchases.values().iterator();
+            while (owned.hasNext()) {
+                if (purchaseToken.equals(owned.next().optString("purchaseToken"))) {
+                    owned.remove();
+                    return InAppBillingPlugin.BILLING_RESPONSE_RESULT_OK;
+                }
+            }
+        }
+
+        return InAppBillingPlugin.BILLING_RESPONSE_RESULT_ITEM_NOT_OWNED;
+    }
+
+    /**
+     * Spends the latency of the method and decides whether an error is
+     * injected into this call.
+     *
+     * @param method
+     * @return response code the call shall fail with, or OK
+     * @throws RemoteException if such an error is injected
+     */
+    private int call(String method) throws RemoteException {
+        Long delay = latency.containsKey(method) ? latency.get(method) : latency.get(METHOD_DEFAULT);
+        if (delay != null && delay > 0) {
+            SystemClock.sleep(delay);
+        }
+
+        JSONObject error = errors != null ? errors.optJSONObject(method) : null;
+        if (error == null || nextDouble() >= error.optDouble("rate", 1)) {
+            return InAppBillingPlugin.BILLING_RESPONSE_RESULT_OK;
+        }
+
+        if (error.optBoolean("remoteException")) {
+            throw new RemoteException();
+        }
+
+        return error.optInt("responseCode", InAppBillingPlugin.BILLING_RESPONSE_RESULT_ERROR);
+    }
+
+    private synchronized double nextDouble() {
+        return random.nextDouble();
+    }
+
+    /**
+     * Fills in the fields of purchase data the fixture may leave out.
+     */
+    private JSONObject completePurchase(JSONObject purchase) throws JSONException {
+        orderCount++;
+        if (!purchase.has("orderId")) {
+            purchase.put("orderId", "fake." + orderCount);
+        }
+        if (!purchase.has("purchaseTime")) {
+            purchase.put("purchaseTime", System.currentTimeMillis());
+        }
+        if (!purchase.has("purchaseState")) {
+            purchase.put("purchaseState", 0);
+        }
+        if (!purchase.has("purchaseToken")) {
+            purchase.put("purchaseToken", UUID.randomUUID().toString());
+        }
+
+        return purchase;
+    }
+
+    private String sign(String purchaseData) {
+        if (signingKey == null) {
+            return "";
+        }
+
+        try {
+            Signature signature = Signature.getInstance("SHA1withRSA");
+            signature.initSign(signingKey);
+            signature.update(purchaseData.getBytes("UTF-8"));
+
+            return Base64.encode(signature.sign());
+        }
+        catch (GeneralSecurityException ex) {
+            throw new RuntimeException(ex);
+        }
+        catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/**
+ * In App Billing Plugin
+ *
+ * Details and more information under:
+ * https://github.com/mohamnag/InAppBilling/wiki
+ */
+package com.mohamnag.inappbilling;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.cordova.CordovaWebView;
+import org.json.JSONObject;
+
+/**
+ * Passes native logs to the log function in JavaScript world
+ * (window.inappbilling.log) for an easier debug for end developers.
+ *
+ * Lines are collected and sent together once per frame, instead of one bridge
+ * call per line. Above the rate limit lines are dropped and only their count
+ * is reported. While disabled, logging a message costs neither formatting nor
+ * a bridge call.
+ */
+class JsLogger {
+
+    /**
+     * Delay between the first buffered line and sending the buffer, about one
+     * frame.
+     */
+    static final long FLUSH_DELAY = 16;
+
+    static final long RATE_WINDOW = 1000;
+
+    private final CordovaWebView webView;
+    private final int maxLinesPerSecond;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    private volatile boolean enabled = false;
+
+    private final List<String> buffer = new ArrayList<String>();
+    private boolean flushScheduled = false;
+    private long windowStart = 0;
+    private int windowCount = 0;
+    private int dropped = 0;
+    private long totalDropped = 0;
+
+    private final Runnable flushTask = new Runnable() {
+
+        @Override
+        public void run() {
+            flush();
+        }
+
+    };
+
+    /**
+     * @param webView
+     * @param maxLinesPerSecond lines above this are dropped
+     */
+    JsLogger(CordovaWebView webView, int maxLinesPerSecond) {
+        this.webView = webView;
+        this.maxLinesPerSecond = maxLinesPerSecond;
+    }
+
+    /**
+     * Turns the logs on or off, this is set from init options.
+     *
+     * @param enabled
+     */
+    void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Total number of lines dropped due to rate limit so far.
+     *
+     * @return
+     */
+    synchronized long getDroppedCount() {
+        return totalDropped;
+    }
+
+    /**
+     * Logs a message, formatted with {@link String#format} only if logging is
+     * enabled.
+     *
+     * @param format
+     * @param args
+     */
+    void log(String format, Object... args) {
+        if (!enabled) {
+            return;
+        }
+
+        log(args.length == 0 ? format : String.format(format, args));
+    }
+
+    /**
+     * Logs a message as it is.
+     *
+     * @param msg
+     */
+    void log(String msg) {
+        if (!enabled) {
+            return;
+        }
+
+        synchronized (this) {
+            long now = SystemClock.uptimeMillis();
+            if (now - windowStart >= RATE_WINDOW) {
+                windowStart = now;
+                windowCount = 0;
+            }
+
+            if (windowCount >= maxLinesPerSecond) {
+                dropped++;
+                totalDropped++;
+                return;
+            }
+
+            windowCount++;
+            buffer.add(msg);
+
+            if (!flushScheduled) {
+                flushScheduled = true;
+                handler.postDelayed(flushTask, FLUSH_DELAY);
+            }
+        }
+    }
+
+    /**
+     * Sends all the buffered lines in one call.
+     */
+    void flush() {
+        StringBuilder js = new StringBuilder();
+
+        synchronized (this) {
+            flushScheduled = false;
+
+            for (String line : buffer) {
+                appendLine(js, line);
+            }
+            buffer.clear();
+
+            if (dropped > 0) {
+                appendLine(js, dropped + " log lines dropped, more than " + maxLinesPerSecond + " per second");
+                dropped = 0;
+            }
+        }
+
+        if (js.length() > 0) {
+            webView.sendJavascript(js.toString());
+        }
+    }
+
+    /**
+     * Drops the buffered lines and stops sending them, used when plugin is
+     * destroyed.
+     */
+    synchronized void close() {
+        enabled = false;
+        handler.removeCallbacks(flushTask);
+        flushScheduled = false;
+        buffer.clear();
+    }
+
+    private static void appendLine(StringBuilder js, String line) {
+        // quoted as a JS string, so the message can not break out of it
+        js.append("window.inappbilling.log(")
+                .append(JSONObject.quote("[android] " + line))
+                .append(");");
+    }
+}
@@ -0,0 +1,107 @@
+package com.mohamnag.inappbilling.helper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * Encodes lists of products and purchases in a compact binary form, to be
+ * sent to JavaScript as an ArrayBuffer instead of JSON. The fields are the
+ * same as in JSON, but their names are not repeated for each item and nothing
+ * has to be escaped or parsed on the other side. The decoder is
+ * decodeBinaryResult in www/inappbilling.js, keep both in sync.
+ *
+ * All numbers are big endian, a string is its length in bytes as uint32
+ * followed by its UTF-8 bytes:
+ * <pre>
+ * uint8   MAGIC
+ * uint8   VERSION
+ * uint8   kind, KIND_PRODUCTS or KIND_PURCHASES
+ * string  item type of the items, empty if mixed
+ * uint32  number of items
+ * items, each one either
+ *   product:  string id, string type, string price, int64 priceMicros,
+ *             string currencyCode, string title, string description
+ *   purchase: string id, string originalId, string productId,
+ *             string expirationDate, string verificationPayload
+ * </pre>
+ */
+public class BinaryEncoder {
+
+    static final int MAGIC = 0x49;
+    static final int VERSION = 1;
+
+    public static final int KIND_PRODUCTS = 1;
+    public static final int KIND_PURCHASES = 2;
+
+    private static final String ENCODING = "UTF-8";
+
+    public static byte[] encodeProducts(Collection<SkuDetails> products) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + products.size() * 128);
+            DataOutputStream out = new DataOutputStream(bytes);
+
+            writeHeader(out, KIND_PRODUCTS, "", products.size());
+            for (SkuDetails product : products) {
+                writeString(out, product.getSku());
+                writeString(out, product.getType());
+                writeString(out, product.getPrice());
+                out.writeLong(product.getPriceMicros());
+                writeString(out, product.getCurrency());
+                writeString(out, product.getTitle());
+                writeString(out, product.getDescription());
+            }
+
+            out.flush();
+            return bytes.toByteArray();
+        }
+        catch (IOException ex) {
+            // not possible when writing to memory
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * @param itemType item type of all the purchases, or null if they are of
+     * different types
+     * @param purchases
+     * @return
+     */
+    public static byte[] encodePurchases(String itemType, Collection<Purchase> purchases) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + purchases.size() * 256);
+            DataOutputStream out = new DataOutputStream(bytes);
+
+            writeHeader(out, KIND_PURCHASES, itemType, purchases.size());
+            for (Purchase purchase : purchases) {
+                writeString(out, purchase.getOrderId());
+                writeString(out, ""); // iOS only, like in JSON
+                writeString(out, purchase.getSku());
+                writeString(out, ""); // not known, like in JSON
+                writeString(out, purchase.getSignature());
+            }
+
+            out.flush();
+            return bytes.toByteArray();
+        }
+        catch (IOException ex) {
+            // not possible when writing to memory
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static void writeHeader(DataOutputStream out, int kind, String itemType, int count) throws IOException {
+        out.writeByte(MAGIC);
+        out.writeByte(VERSION);
+        out.writeByte(kind);
+        writeString(out, itemType);
+        out.writeInt(count);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value == null ? new byte[0] : value.getBytes(ENCODING);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
@@ -0,0 +1,289 @@
+package com.mohamnag.inappbilling.helper;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Keeps the purchases user owns in a file on device, so the question whether a
+ * product is owned can be answered from memory right after start, without
+ * waiting for billing service.
+ *
+ * Only purchases which have passed verification (if a licence key is set) are
+ * put here and they are stored together with their signature. As the file can
+ * be changed by anyone with access to the device, the signatures are checked
+ * again when it is read back, if a verifier is given.
+ *
+ * The store follows the changes of inventory, and each time the full list of
+ * owned items of a type is loaded from store it is replaced with that list,
+ * so purchases refunded or cancelled since a previous run are removed too.
+ */
+public class EntitlementStore {
+
+    private static final String KEY_ITEM_TYPE = "itemType";
+    private static final String KEY_JSON = "json";
+    private static final String KEY_SIGNATURE = "signature";
+
+    private static final String ENCODING = "UTF-8";
+
+    /**
+     * Purchase state of an item which is bought and not refunded or cancelled.
+     */
+    static final int PURCHASE_STATE_PURCHASED = 0;
+
+    private final File file;
+
+    /**
+     * Checks the entries read from file, null to take them as they are.
+     */
+    private final PurchaseVerifier verifier;
+
+    private Map<String, Purchase> entitlements;
+
+    public EntitlementStore(File file) {
+        this(file, null);
+    }
+
+    /**
+     * @param file where the store is persisted
+     * @param verifier checks the signatures of the entries read from file,
+     * null if no licence key is set
+     */
+    public EntitlementStore(File file, PurchaseVerifier verifier) {
+        this.file = file;
+        this.verifier = verifier;
+    }
+
+    /**
+     * Reads the file if it is not read yet, so the first check does not have
+     * to. Call it off main thread.
+     */
+    public synchronized void preload() {
+        load();
+    }
+
+    /**
+     * Whether user owns the product.
+     *
+     * @param sku
+     * @return
+     */
+    public synchronized boolean isOwned(String sku) {
+        Purchase purchase = load().get(sku);
+        return purchase != null && purchase.getPurchaseState() == PURCHASE_STATE_PURCHASED;
+    }
+
+    /**
+     * Returns all the purchases user owns.
+     *
+     * @return
+     */
+    public synchronized List<Purchase> getEntitlements() {
+        List<Purchase> ret = new ArrayList<Purchase>();
+        for (Purchase purchase : load().values()) {
+            if (purchase.getPurchaseState() == PURCHASE_STATE_PURCHASED) {
+                ret.add(purchase);
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * Applies the purchase changes of inventory and writes the store to file
+     * if anything has changed. Purchases of a reset are added, but nothing is
+     * removed for it, as a new inventory starts empty.
+     *
+     * @param changes
+     */
+    public synchronized void update(InventoryChanges changes) {
+        boolean modified = put(changes.getAddedPurchases());
+        modified |= put(changes.getChangedPurchases());
+
+        for (Purchase purchase : changes.getRemovedPurchases()) {
+            modified |= load().remove(purchase.getSku()) != null;
+        }
+
+        if (modified) {
+            save();
+        }
+    }
+
+    /**
+     * Replaces all the purchases of an item type with the given ones and writes
+     * the store to file if anything has changed. Use this when the full list of
+     * owned items of a type is loaded.
+     *
+     * @param itemType
+     * @param purchases
+     */
+    public synchronized void replace(String itemType, Collection<Purchase> purchases) {
+        Set<String> kept = new HashSet<String>();
+        for (Purchase purchase : purchases) {
+            kept.add(purchase.getSku());
+        }
+
+        boolean modified = false;
+        Iterator<Purchase> stored = load().values().iterator();
+        while (stored.hasNext()) {
+            Purchase purchase = stored.next();
+            if (itemType.equals(purchase.getItemType()) && !kept.contains(purchase.getSku())) {
+                stored.remove();
+                modified = true;
+            }
+        }
+
+        modified |= put(purchases);
+
+        if (modified) {
+            save();
+        }
+    }
+
+    private boolean put(Collection<Purchase> purchases) {
+        boolean modified = false;
+        for (Purchase purchase : purchases) {
+            Purchase old = load().put(purchase.getSku(), purchase);
+            modified |= old == null || !old.getOriginalJson().equals(purchase.getOriginalJson());
+        }
+
+        return modified;
+    }
+
+    /**
+     * Removes all the entries, also from file.
+     */
+    public synchronized void clear() {
+        load().clear();
+        file.delete();
+    }
+
+    /**
+     * Reads the store file on first access, a missing or broken file results
+     * in an empty store.
+     *
+     * @return
+     */
+    private Map<String, Purchase> load() {
+        if (entitlements != null) {
+            return entitlements;
+        }
+
+        entitlements = new LinkedHashMap<String, Purchase>();
+        if (!file.exists()) {
+            return entitlements;
+        }
+
+        try {
+            JSONObject stored = new JSONObject(readFile());
+            Iterator<?> keys = stored.keys();
+
+            while (keys.hasNext()) {
+                String key = (String) keys.next();
+                JSONObject entry = stored.optJSONObject(key);
+                if (entry == null) {
+                    continue;
+                }
+
+                if (verifier != null && !verifier.verify(entry.optString(KEY_JSON), entry.optString(KEY_SIGNATURE))) {
+                    // changed outside the plugin, owned ones come back once purchases are loaded
+                    continue;
+                }
+
+                try {
+                    Purchase purchase = new Purchase(
+                            entry.optString(KEY_ITEM_TYPE),
+                            entry.optString(KEY_JSON),
+                            entry.optString(KEY_SIGNATURE)
+                    );
+                    entitlements.put(purchase.getSku(), purchase);
+                }
+                catch (JSONException ex) {
+                    // skip this entry only, it comes back once purchases are loaded
+                }
+            }
+        }
+        catch (IOException ex) {
+            Logger.getLogger(EntitlementStore.class.getName()).log(Level.WARNING, null, ex);
+        }
+        catch (JSONException ex) {
+            Logger.getLogger(EntitlementStore.class.getName()).log(Level.WARNING, null, ex);
+        }
+
+        return entitlements;
+    }
+
+    private String readFile() throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[(int) file.length()];
+            int read = 0;
+            while (read < buffer.length) {
+                int count = in.read(buffer, read, buffer.length - read);
+                if (count < 0) {
+                    break;
+                }
+                read += count;
+            }
+
+            return new String(buffer, 0, read, ENCODING);
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes all entries to a temporary file first and then replaces the
+     * store file with it, so a crash while writing does not leave a broken
+     * store behind.
+     */
+    private void save() {
+        File tmp = new File(file.getPath() + ".tmp");
+
+        try {
+            JSONObject stored = new JSONObject();
+            for (Purchase purchase : entitlements.values()) {
+                JSONObject value = new JSONObject();
+                value.put(KEY_ITEM_TYPE, purchase.getItemType());
+                value.put(KEY_JSON, purchase.getOriginalJson());
+                value.put(KEY_SIGNATURE, purchase.getSignature());
+
+                stored.put(purchase.getSku(), value);
+            }
+
+            OutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(stored.toString().getBytes(ENCODING));
+            }
+            finally {
+                out.close();
+            }
+
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+            }
+        }
+        catch (IOException ex) {
+            Logger.getLogger(EntitlementStore.class.getName()).log(Level.WARNING, null, ex);
+        }
+        catch (JSONException ex) {
+            Logger.getLogger(EntitlementStore.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.mohamnag.inappbilling.helper;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The products and purchases which were added, changed or removed by one
+ * change of an {@link Inventory}.
+ *
+ * A reset holds the whole content of inventory as added items, whatever was
+ * known about the inventory before shall be replaced by it.
+ */
+public class InventoryChanges {
+
+    final boolean reset;
+
+    final List<SkuDetails> addedProducts = new ArrayList<SkuDetails>();
+    final List<SkuDetails> changedProducts = new ArrayList<SkuDetails>();
+    final List<SkuDetails> removedProducts = new ArrayList<SkuDetails>();
+    final List<Purchase> addedPurchases = new ArrayList<Purchase>();
+    final List<Purchase> changedPurchases = new ArrayList<Purchase>();
+    final List<Purchase> removedPurchases = new ArrayList<Purchase>();
+
+    InventoryChanges() {
+        this(false);
+    }
+
+    InventoryChanges(boolean reset) {
+        this.reset = reset;
+    }
+
+    public boolean isReset() {
+        return reset;
+    }
+
+    public List<SkuDetails> getAddedProducts() {
+        return addedProducts;
+    }
+
+    public List<SkuDetails> getChangedProducts() {
+        return changedProducts;
+    }
+
+    public List<SkuDetails> getRemovedProducts() {
+        return removedProducts;
+    }
+
+    public List<Purchase> getAddedPurchases() {
+        return addedPurchases;
+    }
+
+    public List<Purchase> getChangedPurchases() {
+        return changedPurchases;
+    }
+
+    public List<Purchase> getRemovedPurchases() {
+        return removedPurchases;
+    }
+
+    public boolean isEmpty() {
+        return !reset
+               && addedProducts.isEmpty()
+               && changedProducts.isEmpty()
+               && removedProducts.isEmpty()
+               && addedPurchases.isEmpty()
+               && changedPurchases.isEmpty()
+               && removedPurchases.isEmpty();
+    }
+
+    /**
+     * Converts the changes to JSON in the format passed to change listeners in
+     * javascript:
+     * {reset, products: {added, changed, removed}, purchases: {added, changed, removed}}
+     *
+     * @return
+     * @throws JSONException
+     */
+    public JSONObject toJavaScriptJson() throws JSONException {
+        JSONObject products = new JSONObject();
+        products.put("added", productsToJson(addedProducts));
+        products.put("changed", productsToJson(changedProducts));
+        products.put("removed", productsToJson(removedProducts));
+
+        JSONObject purchases = new JSONObject();
+        purchases.put("added", purchasesToJson(addedPurchases));
+        purchases.put("changed", purchasesToJson(changedPurchases));
+        purchases.put("removed", purchasesToJson(removedPurchases));
+
+        JSONObject ret = new JSONObject();
+        ret.put("reset", reset);
+        ret.put("products", products);
+        ret.put("purchases", purchases);
+
+        return ret;
+    }
+
+    private static JSONArray productsToJson(List<SkuDetails> products) throws JSONException {
+        JSONArray ret = new JSONArray();
+        for (SkuDetails product : products) {
+            ret.put(product.toJson());
+        }
+        return ret;
+    }
+
+    private static JSONArray purchasesToJson(List<Purchase> purchases) throws JSONException {
+        JSONArray ret = new JSONArray();
+        for (Purchase purchase : purchases) {
+            ret.put(purchase.toJavaScriptJson());
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,244 @@
+package com.mohamnag.inappbilling.helper;
+
+import org.json.JSONException;
+
+/**
+ * A minimal reader which picks the values of some top level fields out of a
+ * JSON object string in one pass, without building a JSONObject for it. This
+ * is what the store returns for every purchase and product, of which we only
+ * need a handful of fields.
+ *
+ * Values are returned the same way JSONObject.optString would return them:
+ * strings unescaped, numbers and literals as they are written. Nested objects
+ * and arrays are skipped and returned as null.
+ */
+class JsonFields {
+
+    private final String json;
+    private int pos;
+
+    private JsonFields(String json) {
+        this.json = json;
+    }
+
+    /**
+     * Reads the values of the given keys from a JSON object.
+     *
+     * @param json the JSON object string
+     * @param keys
+     * @return the value of each key, null for missing ones
+     * @throws JSONException if json is not a valid object
+     */
+    static String[] extract(String json, String... keys) throws JSONException {
+        if (json == null) {
+            throw new JSONException("Value is null");
+        }
+
+        return new JsonFields(json).readObject(keys);
+    }
+
+    static long toLong(String value) {
+        if (value == null) {
+            return 0;
+        }
+
+        try {
+            return Long.parseLong(value);
+        }
+        catch (NumberFormatException ex) {
+            try {
+                return (long) Double.parseDouble(value);
+            }
+            catch (NumberFormatException ex2) {
+                return 0;
+            }
+        }
+    }
+
+    static String orEmpty(String value) {
+        return value == null ? "" : value;
+    }
+
+    private String[] readObject(String[] keys) throws JSONException {
+        String[] ret = new String[keys.length];
+
+        skipWhitespace();
+        expect('{');
+        skipWhitespace();
+
+        if (peek() == '}') {
+            pos++;
+            return ret;
+        }
+
+        while (true) {
+            skipWhitespace();
+            String key = readString();
+            skipWhitespace();
+            expect(':');
+            skipWhitespace();
+
+            int index = indexOf(keys, key);
+            char c = peek();
+            if (c == '"') {
+                String value = readString();
+                if (index >= 0) {
+                    ret[index] = value;
+                }
+            }
+            else if (c == '{' || c == '[') {
+                skipNested();
+            }
+            else {
+                String value = readLiteral();
+                if (index >= 0) {
+                    ret[index] = value;
+                }
+            }
+
+            skipWhitespace();
+            c = next();
+            if (c == '}') {
+                return ret;
+            }
+            else if (c != ',') {
+                throw syntaxError("Expected ',' or '}'");
+            }
+        }
+    }
+
+    private static int indexOf(String[] keys, String key) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i].equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private String readString() throws JSONException {
+        expect('"');
+        int start = pos;
+
+        // fast path: no escapes, the value is a plain substring
+        while (pos < json.length()) {
+            char c = json.charAt(pos);
+            if (c == '"') {
+                return json.substring(start, pos++);
+            }
+            if (c == '\\') {
+                break;
+            }
+            pos++;
+        }
+
+        StringBuilder builder = new StringBuilder(json.length() - start);
+        builder.append(json, start, pos);
+
+        while (pos < json.length()) {
+            char c = json.charAt(pos++);
+            if (c == '"') {
+                return builder.toString();
+            }
+            if (c != '\\') {
+                builder.append(c);
+                continue;
+            }
+
+            char escaped = next();
+            switch (escaped) {
+                case 'b': builder.append('\b'); break;
+                case 'f': builder.append('\f'); break;
+                case 'n': builder.append('\n'); break;
+                case 'r': builder.append('\r'); break;
+                case 't': builder.append('\t'); break;
+                case 'u':
+                    if (pos + 4 > json.length()) {
+                        throw syntaxError("Unterminated escape sequence");
+                    }
+                    try {
+                        builder.append((char) Integer.parseInt(json.substring(pos, pos + 4), 16));
+                    }
+                    catch (NumberFormatException ex) {
+                        throw syntaxError("Invalid escape sequence");
+                    }
+                    pos += 4;
+                    break;
+                default:
+                    builder.append(escaped);
+            }
+        }
+
+        throw syntaxError("Unterminated string");
+    }
+
+    private String readLiteral() throws JSONException {
+        int start = pos;
+        while (pos < json.length()) {
+            char c = json.charAt(pos);
+            if (c == ',' || c == '}' || c == ']' || Character.isWhitespace(c)) {
+                break;
+            }
+            pos++;
+        }
+
+        if (start == pos) {
+            throw syntaxError("Expected literal value");
+        }
+
+        return json.substring(start, pos);
+    }
+
+    /**
+     * Skips a nested object or array, only strings need care as they may
+     * contain brackets.
+     */
+    private void skipNested() throws JSONException {
+        int depth = 0;
+        do {
+            char c = peek();
+            if (c == '"') {
+                readString();
+                continue;
+            }
+
+            pos++;
+            if (c == '{' || c == '[') {
+                depth++;
+            }
+            else if (c == '}' || c == ']') {
+                depth--;
+            }
+        }
+        while (depth > 0);
+    }
+
+    private void skipWhitespace() {
+        while (pos < json.length() && Character.isWhitespace(json.charAt(pos))) {
+            pos++;
+        }
+    }
+
+    private char peek() throws JSONException {
+        if (pos >= json.length()) {
+            throw syntaxError("Unexpected end of input");
+        }
+        return json.charAt(pos);
+    }
+
+    private char next() throws JSONException {
+        char c = peek();
+        pos++;
+        return c;
+    }
+
+    private void expect(char c) throws JSONException {
+        if (next() != c) {
+            throw syntaxError("Expected '" + c + "'");
+        }
+    }
+
+    private JSONException syntaxError(String message) {
+        return new JSONException(message + " at character " + pos + " of " + json);
+    }
+}
@@ -0,0 +1,168 @@
+package com.mohamnag.inappbilling.helper;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Verifies purchase signatures against one licence key. Unlike
+ * {@link Security#verifyPurchase}, the key is decoded only once when the
+ * verifier is created and each thread reuses its own Signature instance.
+ */
+public class PurchaseVerifier {
+
+    private static final String TAG = "IABUtil/PurchaseVerifier";
+
+    private static final String SIGNATURE_ALGORITHM = "SHA1withRSA";
+
+    /**
+     * Batches smaller than this are verified on the calling thread, splitting
+     * them up would cost more than it saves.
+     */
+    private static final int MIN_PARALLEL_BATCH = 16;
+
+    private final PublicKey publicKey;
+
+    private final ThreadLocal<Signature> signatures = new ThreadLocal<Signature>() {
+
+        @Override
+        protected Signature initialValue() {
+            try {
+                return Signature.getInstance(SIGNATURE_ALGORITHM);
+            }
+            catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+    };
+
+    /**
+     * Per thread buffer the signatures are decoded into, grown when needed.
+     */
+    private final ThreadLocal<byte[]> signatureBuffers = new ThreadLocal<byte[]>();
+
+    /**
+     * @param base64PublicKey the base64-encoded public key to use for
+     * verifying.
+     * @throws IllegalArgumentException if the key is invalid
+     */
+    public PurchaseVerifier(String base64PublicKey) {
+        publicKey = Security.generatePublicKey(base64PublicKey);
+    }
+
+    /**
+     * Verifies that the data was signed with the given signature.
+     *
+     * @param signedData the signed JSON string (signed, not encrypted)
+     * @param signature the signature for the data, signed with the private key
+     * @return true if the data and signature match
+     */
+    public boolean verify(String signedData, String signature) {
+        if (TextUtils.isEmpty(signedData) || TextUtils.isEmpty(signature)) {
+            Log.e(TAG, "Purchase verification failed: missing data.");
+            return false;
+        }
+
+        try {
+            Signature sig = signatures.get();
+            sig.initVerify(publicKey);
+            sig.update(signedData.getBytes());
+
+            byte[] buffer = signatureBuffers.get();
+            if (buffer == null || buffer.length < Base64.maxDecodedLength(signature.length())) {
+                buffer = new byte[Base64.maxDecodedLength(signature.length())];
+                signatureBuffers.set(buffer);
+            }
+            int length = Base64.decode(signature, buffer, 0);
+
+            if (!sig.verify(buffer, 0, length)) {
+                Log.e(TAG, "Signature verification failed.");
+                return false;
+            }
+            return true;
+        }
+        catch (InvalidKeyException e) {
+            Log.e(TAG, "Invalid key specification.");
+        }
+        catch (SignatureException e) {
+            Log.e(TAG, "Signature exception.");
+        }
+        catch (Base64DecoderException e) {
+            Log.e(TAG, "Base64 decoding failed.");
+        }
+        return false;
+    }
+
+    /**
+     * Verifies a list of purchases. Larger lists are split into parts which
+     * are verified in parallel on the given executor, the executor must be
+     * able to run these parts while the calling thread waits for them.
+     *
+     * @param signedData
+     * @param signatures signature of each item in signedData
+     * @param executor
+     * @return verification result of each item in signedData
+     */
+    public boolean[] verify(final List<String> signedData, final List<String> signatures, ExecutorService executor) {
+        final boolean[] ret = new boolean[signedData.size()];
+        int parts = Math.min(Runtime.getRuntime().availableProcessors(), ret.length / MIN_PARALLEL_BATCH);
+
+        if (parts < 2) {
+            verifyRange(signedData, signatures, ret, 0, ret.length);
+            return ret;
+        }
+
+        List<Future<?>> futures = new ArrayList<Future<?>>(parts);
+        int partSize = (ret.length + parts - 1) / parts;
+        for (int start = partSize; start < ret.length; start += partSize) {
+            final int from = start;
+            final int to = Math.min(start + partSize, ret.length);
+
+            futures.add(executor.submit(new Callable<Void>() {
+
+                @Override
+                public Void call() {
+                    verifyRange(signedData, signatures, ret, from, to);
+                    return null;
+                }
+
+            }));
+        }
+
+        // first part is done here, instead of waiting idle
+        verifyRange(signedData, signatures, ret, 0, Math.min(partSize, ret.length));
+
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                Log.e(TAG, "Interrupted while verifying purchases.");
+            }
+            catch (ExecutionException e) {
+                Log.e(TAG, "Verifying purchases failed.", e);
+            }
+        }
+
+        return ret;
+    }
+
+    private void verifyRange(List<String> signedData, List<String> signatures, boolean[] ret, int from, int to) {
+        for (int i = from; i < to; i++) {
+            ret[i] = verify(signedData.get(i), signatures.get(i));
+        }
+    }
+}
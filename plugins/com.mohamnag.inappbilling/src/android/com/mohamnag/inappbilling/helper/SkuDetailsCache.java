@@ -0,0 +1,275 @@
+package com.mohamnag.inappbilling.helper;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Keeps the details of products loaded from store in a file on device, so they
+ * can be returned right away on next start and refreshed afterwards.
+ *
+ * Entries are keyed by package name, locale and product ID, as the store
+ * returns localized titles and prices. An entry older than TTL is still
+ * returned but reported as stale, so the caller can refresh it in background.
+ *
+ * Changes are made in memory only, the caller writes them to file with
+ * {@link #save} when it suits, off the thread which is waiting for them.
+ */
+public class SkuDetailsCache {
+
+    private static final String KEY_ITEM_TYPE = "itemType";
+    private static final String KEY_JSON = "json";
+    private static final String KEY_TIME = "time";
+
+    private static final String ENCODING = "UTF-8";
+
+    private final File file;
+    private final String keyPrefix;
+    private final long ttl;
+
+    private Map<String, Entry> entries;
+
+    private int hits = 0;
+    private int staleHits = 0;
+    private int misses = 0;
+
+    static class Entry {
+
+        final SkuDetails details;
+        final long time;
+
+        Entry(SkuDetails details, long time) {
+            this.details = details;
+            this.time = time;
+        }
+    }
+
+    /**
+     * @param file where the cache is persisted
+     * @param packageName
+     * @param locale
+     * @param ttl time in milliseconds after which an entry is considered stale
+     */
+    public SkuDetailsCache(File file, String packageName, Locale locale, long ttl) {
+        this.file = file;
+        this.keyPrefix = packageName + "/" + locale + "/";
+        this.ttl = ttl;
+    }
+
+    /**
+     * Returns cached details of a product, or null if there is none. Stale
+     * entries are returned as well, check them with {@link #isFresh}.
+     *
+     * @param sku
+     * @return
+     */
+    public synchronized SkuDetails get(String sku) {
+        Entry entry = load().get(keyPrefix + sku);
+
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+
+        if (isFresh(entry)) {
+            hits++;
+        }
+        else {
+            staleHits++;
+        }
+
+        return entry.details;
+    }
+
+    /**
+     * Whether there is a cached entry for the product which is not older than
+     * TTL.
+     *
+     * @param sku
+     * @return
+     */
+    public synchronized boolean isFresh(String sku) {
+        Entry entry = load().get(keyPrefix + sku);
+        return entry != null && isFresh(entry);
+    }
+
+    private boolean isFresh(Entry entry) {
+        return System.currentTimeMillis() - entry.time < ttl;
+    }
+
+    /**
+     * Stores the details of products.
+     *
+     * @param products
+     * @return whether the cache has changed and needs to be saved
+     */
+    public synchronized boolean put(Collection<SkuDetails> products) {
+        long now = System.currentTimeMillis();
+        for (SkuDetails details : products) {
+            load().put(keyPrefix + details.getSku(), new Entry(details, now));
+        }
+
+        return !products.isEmpty();
+    }
+
+    /**
+     * Removes the details of products which store does not return anymore.
+     *
+     * @param skus
+     * @return whether the cache has changed and needs to be saved
+     */
+    public synchronized boolean remove(Collection<String> skus) {
+        boolean changed = false;
+        for (String sku : skus) {
+            changed |= load().remove(keyPrefix + sku) != null;
+        }
+
+        return changed;
+    }
+
+    /**
+     * Removes all the entries, also from file.
+     */
+    public synchronized void clear() {
+        load().clear();
+        file.delete();
+    }
+
+    /**
+     * Returns the counters of lookups made on this cache since it has been
+     * created.
+     *
+     * @return
+     * @throws JSONException
+     */
+    public synchronized JSONObject getStats() throws JSONException {
+        JSONObject ret = new JSONObject();
+        ret.put("size", load().size());
+        ret.put("hits", hits);
+        ret.put("staleHits", staleHits);
+        ret.put("misses", misses);
+
+        return ret;
+    }
+
+    /**
+     * Reads the cache file on first access, a missing or broken file results
+     * in an empty cache.
+     *
+     * @return
+     */
+    private Map<String, Entry> load() {
+        if (entries != null) {
+            return entries;
+        }
+
+        entries = new HashMap<String, Entry>();
+        if (!file.exists()) {
+            return entries;
+        }
+
+        try {
+            JSONObject stored = new JSONObject(readFile());
+            Iterator<?> keys = stored.keys();
+
+            while (keys.hasNext()) {
+                String key = (String) keys.next();
+                JSONObject entry = stored.optJSONObject(key);
+                if (entry == null) {
+                    continue;
+                }
+
+                try {
+                    SkuDetails details = new SkuDetails(entry.optString(KEY_ITEM_TYPE), entry.optString(KEY_JSON));
+                    entries.put(key, new Entry(details, entry.optLong(KEY_TIME)));
+                }
+                catch (JSONException ex) {
+                    // skip this entry only, it will be loaded from store again
+                }
+            }
+        }
+        catch (IOException ex) {
+            Logger.getLogger(SkuDetailsCache.class.getName()).log(Level.WARNING, null, ex);
+        }
+        catch (JSONException ex) {
+            Logger.getLogger(SkuDetailsCache.class.getName()).log(Level.WARNING, null, ex);
+        }
+
+        return entries;
+    }
+
+    private String readFile() throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[(int) file.length()];
+            int read = 0;
+            while (read < buffer.length) {
+                int count = in.read(buffer, read, buffer.length - read);
+                if (count < 0) {
+                    break;
+                }
+                read += count;
+            }
+
+            return new String(buffer, 0, read, ENCODING);
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes all entries to a temporary file first and then replaces the
+     * cache file with it, so a crash while writing does not leave a broken
+     * cache behind. Only the copy of entries is made while holding the lock,
+     * lookups do not wait for the disk. Call it from one thread only, so the
+     * writes do not overtake each other.
+     */
+    public void save() {
+        File tmp = new File(file.getPath() + ".tmp");
+
+        try {
+            JSONObject stored = new JSONObject();
+            synchronized (this) {
+                for (Map.Entry<String, Entry> entry : load().entrySet()) {
+                    JSONObject value = new JSONObject();
+                    value.put(KEY_ITEM_TYPE, entry.getValue().details.getItemType());
+                    value.put(KEY_JSON, entry.getValue().details.getOriginalJson());
+                    value.put(KEY_TIME, entry.getValue().time);
+
+                    stored.put(entry.getKey(), value);
+                }
+            }
+
+            OutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(stored.toString().getBytes(ENCODING));
+            }
+            finally {
+                out.close();
+            }
+
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+            }
+        }
+        catch (IOException ex) {
+            Logger.getLogger(SkuDetailsCache.class.getName()).log(Level.WARNING, null, ex);
+        }
+        catch (JSONException ex) {
+            Logger.getLogger(SkuDetailsCache.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.mohamnag.inappbilling.helper;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding and decoding values of the size of a signature (256 bytes) and of
+ * a licence key (294 bytes). Decoding is compared to the way decode(String)
+ * used to work, converting the string to bytes first and decoding those.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class Base64Benchmark {
+
+    @Param({"256", "294"})
+    int length;
+
+    byte[] bytes;
+    String encoded;
+    byte[] buffer;
+
+    @Setup
+    public void setUp() {
+        bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        encoded = Base64.encode(bytes);
+        buffer = new byte[Base64.maxDecodedLength(encoded.length())];
+    }
+
+    @Benchmark
+    public String encode() {
+        return Base64.encode(bytes);
+    }
+
+    @Benchmark
+    public byte[] decode() throws Base64DecoderException {
+        return Base64.decode(encoded);
+    }
+
+    @Benchmark
+    public byte[] decodeOld() throws Base64DecoderException {
+        return Base64.decode(encoded.getBytes());
+    }
+
+    /**
+     * Decoding into a reused buffer, as PurchaseVerifier does.
+     */
+    @Benchmark
+    public int decodeIntoBuffer() throws Base64DecoderException {
+        return Base64.decode(encoded, buffer, 0);
+    }
+}
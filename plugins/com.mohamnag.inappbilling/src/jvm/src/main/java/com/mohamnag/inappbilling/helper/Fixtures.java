@@ -0,0 +1,130 @@
+package com.mohamnag.inappbilling.helper;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.List;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Generates purchases and product details looking like the ones of play store,
+ * signed with a key made up for the run, for benchmarks and tests.
+ */
+public class Fixtures {
+
+    public static final String PACKAGE_NAME = "com.mohamnag.iabsample";
+
+    private static KeyPair keyPair;
+
+    private static synchronized KeyPair keyPair() {
+        if (keyPair == null) {
+            try {
+                KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+                generator.initialize(2048);
+                keyPair = generator.generateKeyPair();
+            }
+            catch (GeneralSecurityException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        return keyPair;
+    }
+
+    /**
+     * The licence key purchases are signed for, as base64 like in config.xml.
+     */
+    public static String licenceKey() {
+        return Base64.encode(keyPair().getPublic().getEncoded());
+    }
+
+    public static String sign(String data) {
+        try {
+            Signature signature = Signature.getInstance("SHA1withRSA");
+            signature.initSign(keyPair().getPrivate());
+            signature.update(data.getBytes("UTF-8"));
+            return Base64.encode(signature.sign());
+        }
+        catch (Exception ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    public static String purchaseJson(int i) {
+        try {
+            JSONObject json = new JSONObject();
+            json.put("orderId", "12999763169054705758." + (1000000000000000L + i));
+            json.put("packageName", PACKAGE_NAME);
+            json.put("productId", "product_" + i);
+            json.put("purchaseTime", 1400000000000L + i);
+            json.put("purchaseState", 0);
+            json.put("developerPayload", "payload of purchase " + i);
+            json.put("purchaseToken", "token_" + i + "_opaque.AO-J1OxHs8M3rY6cQkfR1pZ0vX2bN");
+            return json.toString();
+        }
+        catch (JSONException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    public static String skuDetailsJson(int i) {
+        try {
+            JSONObject json = new JSONObject();
+            json.put("productId", "product_" + i);
+            json.put("type", "inapp");
+            json.put("price", "€" + i + ",99");
+            json.put("price_amount_micros", i * 1000000L + 990000L);
+            json.put("price_currency_code", "EUR");
+            json.put("title", "Product " + i + " (IAB Sample)");
+            json.put("description", "Description of product " + i + ", with \"quotes\" and ümläuts");
+            return json.toString();
+        }
+        catch (JSONException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Purchase data of count purchases, signed when signed is true.
+     */
+    public static List<String[]> purchaseData(int count, boolean signed) {
+        List<String[]> ret = new ArrayList<String[]>(count);
+        for (int i = 0; i < count; i++) {
+            String json = purchaseJson(i);
+            ret.add(new String[]{json, signed ? sign(json) : ""});
+        }
+
+        return ret;
+    }
+
+    public static List<Purchase> purchases(int count) {
+        try {
+            List<Purchase> ret = new ArrayList<Purchase>(count);
+            for (int i = 0; i < count; i++) {
+                ret.add(new Purchase(i % 10 == 0 ? "subs" : "inapp", purchaseJson(i), ""));
+            }
+
+            return ret;
+        }
+        catch (JSONException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    public static List<SkuDetails> products(int count) {
+        try {
+            List<SkuDetails> ret = new ArrayList<SkuDetails>(count);
+            for (int i = 0; i < count; i++) {
+                ret.add(new SkuDetails(skuDetailsJson(i)));
+            }
+
+            return ret;
+        }
+        catch (JSONException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.mohamnag.inappbilling.helper;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Filling, reading and serializing an inventory of the given size.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class InventoryBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    int size;
+
+    List<Purchase> purchases;
+    List<SkuDetails> products;
+    Inventory inventory;
+
+    int next = 0;
+
+    @Setup
+    public void setUp() {
+        purchases = Fixtures.purchases(size);
+        products = Fixtures.products(size);
+
+        inventory = new Inventory(null);
+        inventory.addPurchases(purchases);
+        inventory.addSkuDetails(products);
+    }
+
+    /**
+     * Loading all purchases into an empty inventory, like on start.
+     */
+    @Benchmark
+    public Inventory addPurchases() {
+        Inventory ret = new Inventory(null);
+        ret.addPurchases(purchases);
+        return ret;
+    }
+
+    @Benchmark
+    public Inventory addSkuDetails() {
+        Inventory ret = new Inventory(null);
+        ret.addSkuDetails(products);
+        return ret;
+    }
+
+    @Benchmark
+    public Purchase getPurchase() {
+        next = (next + 7919) % size;
+        return inventory.getPurchase(purchases.get(next).getSku());
+    }
+
+    @Benchmark
+    public SkuDetails getSkuDetails() {
+        next = (next + 7919) % size;
+        return inventory.getSkuDetails(products.get(next).getSku());
+    }
+
+    /**
+     * Serializing purchases from scratch, like after each change.
+     */
+    @Benchmark
+    public String serializePurchases() throws JSONException {
+        return inventory.getAllPurchasesJSON().toString();
+    }
+
+    @Benchmark
+    public String serializeProducts() throws JSONException {
+        return inventory.getAllProductsJSON().toString();
+    }
+
+    /**
+     * Serialized purchases when nothing has changed since the last read.
+     */
+    @Benchmark
+    public String serializePurchasesCached() throws JSONException {
+        return inventory.getAllPurchasesJSONString();
+    }
+}
@@ -0,0 +1,113 @@
+package com.mohamnag.inappbilling.helper;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Finding and removing a purchase by order id in an account with many
+ * purchases, through the index compared to the scan over all purchases
+ * Inventory used to do.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class InventoryIndexBenchmark {
+
+    @Param({"10000"})
+    int size;
+
+    List<Purchase> purchases;
+    Inventory inventory;
+
+    /**
+     * Purchases by SKU, the way Inventory held them before the indexes.
+     */
+    Map<String, Purchase> purchaseMap;
+
+    int next = 0;
+
+    @Setup
+    public void setUp() {
+        purchases = Fixtures.purchases(size);
+
+        inventory = new Inventory(null);
+        for (Purchase purchase : purchases) {
+            inventory.addPurchase(purchase);
+        }
+
+        purchaseMap = new HashMap<String, Purchase>();
+        for (Purchase purchase : purchases) {
+            purchaseMap.put(purchase.getSku(), purchase);
+        }
+    }
+
+    private Purchase nextPurchase() {
+        next = (next + 7919) % size;
+        return purchases.get(next);
+    }
+
+    @Benchmark
+    public Purchase getPurchaseByOrderId() {
+        return inventory.getPurchaseByOrderId(nextPurchase().getOrderId());
+    }
+
+    @Benchmark
+    public Purchase getPurchaseByOrderIdScan() {
+        String id = nextPurchase().getOrderId();
+        for (Purchase purchase : purchaseMap.values()) {
+            if (id.equals(purchase.getOrderId())) {
+                return purchase;
+            }
+        }
+
+        return null;
+    }
+
+    @Benchmark
+    public Purchase getPurchaseByToken() {
+        return inventory.getPurchaseByToken(nextPurchase().getToken());
+    }
+
+    /**
+     * Consuming a purchase and getting it back, so the inventory keeps its
+     * size. Both are writes, each one changes only the indexes of that
+     * purchase.
+     */
+    @Benchmark
+    public int eraseByOrderIdAndAdd() {
+        Purchase purchase = nextPurchase();
+        inventory.erasePurchaseByOrderId(purchase.getOrderId());
+        inventory.addPurchase(purchase);
+        return inventory.getPurchaseCount();
+    }
+
+    @Benchmark
+    public int eraseByOrderIdAndAddScan() {
+        Purchase purchase = nextPurchase();
+        String id = purchase.getOrderId();
+        for (Purchase p : purchaseMap.values()) {
+            if (id.equals(p.getOrderId())) {
+                purchaseMap.remove(p.getSku());
+                break;
+            }
+        }
+        purchaseMap.put(purchase.getSku(), purchase);
+        return purchaseMap.size();
+    }
+}
@@ -0,0 +1,96 @@
+package com.mohamnag.inappbilling.helper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Reading a page of purchases and of product details, with the field reader
+ * and with a JSONObject built for each item like the constructors used to do.
+ * Meant to be run with "-prof gc", gc.alloc.rate.norm is the number of bytes
+ * allocated per page.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParsingAllocationBenchmark {
+
+    @Param({"1000"})
+    int count;
+
+    List<String> purchaseJson;
+    List<String> skuDetailsJson;
+
+    @Setup
+    public void setUp() {
+        purchaseJson = new ArrayList<String>(count);
+        skuDetailsJson = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            purchaseJson.add(Fixtures.purchaseJson(i));
+            skuDetailsJson.add(Fixtures.skuDetailsJson(i));
+        }
+    }
+
+    @Benchmark
+    public void purchases(Blackhole blackhole) throws JSONException {
+        for (String json : purchaseJson) {
+            blackhole.consume(new Purchase("inapp", json, ""));
+        }
+    }
+
+    /**
+     * The fields the constructor of Purchase used to read through a
+     * JSONObject.
+     */
+    @Benchmark
+    public void purchasesJSONObject(Blackhole blackhole) throws JSONException {
+        for (String json : purchaseJson) {
+            JSONObject o = new JSONObject(json);
+            blackhole.consume(o.optString("orderId"));
+            blackhole.consume(o.optString("packageName"));
+            blackhole.consume(o.optString("productId"));
+            blackhole.consume(o.optLong("purchaseTime"));
+            blackhole.consume(o.optInt("purchaseState"));
+            blackhole.consume(o.optString("developerPayload"));
+            blackhole.consume(o.optString("token", o.optString("purchaseToken")));
+        }
+    }
+
+    @Benchmark
+    public void skuDetails(Blackhole blackhole) throws JSONException {
+        for (String json : skuDetailsJson) {
+            blackhole.consume(new SkuDetails("inapp", json));
+        }
+    }
+
+    @Benchmark
+    public void skuDetailsJSONObject(Blackhole blackhole) throws JSONException {
+        for (String json : skuDetailsJson) {
+            JSONObject o = new JSONObject(json);
+            blackhole.consume(o.optString("productId"));
+            blackhole.consume(o.optString("type"));
+            blackhole.consume(o.optString("price"));
+            blackhole.consume(o.optString("title"));
+            blackhole.consume(o.optString("description"));
+            blackhole.consume(o.optInt("price_amount_micros"));
+            blackhole.consume(o.optString("price_currency_code"));
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.mohamnag.inappbilling.helper;
+
+import java.util.concurrent.TimeUnit;
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading one purchase and one product detail, as the store returns them.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParsingBenchmark {
+
+    String purchaseJson;
+    String skuDetailsJson;
+
+    @Setup
+    public void setUp() {
+        purchaseJson = Fixtures.purchaseJson(42);
+        skuDetailsJson = Fixtures.skuDetailsJson(42);
+    }
+
+    @Benchmark
+    public Purchase purchase() throws JSONException {
+        return new Purchase("inapp", purchaseJson, "");
+    }
+
+    @Benchmark
+    public SkuDetails skuDetails() throws JSONException {
+        return new SkuDetails("inapp", skuDetailsJson);
+    }
+}
@@ -0,0 +1,90 @@
+package com.mohamnag.inappbilling.helper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Verifying all the purchases of an account: once the old way, decoding the
+ * licence key and getting a Signature for every purchase, and once with a
+ * PurchaseVerifier, one by one and as a parallel batch.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PurchaseVerifierBenchmark {
+
+    @Param({"1000"})
+    int count;
+
+    String licenceKey;
+    List<String> signedData;
+    List<String> signatures;
+
+    PurchaseVerifier verifier;
+    ExecutorService executor;
+
+    @Setup
+    public void setUp() {
+        licenceKey = Fixtures.licenceKey();
+
+        signedData = new ArrayList<String>(count);
+        signatures = new ArrayList<String>(count);
+        for (String[] purchase : Fixtures.purchaseData(count, true)) {
+            signedData.add(purchase[0]);
+            signatures.add(purchase[1]);
+        }
+
+        verifier = new PurchaseVerifier(licenceKey);
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public int securityVerifyPurchase() {
+        int valid = 0;
+        for (int i = 0; i < count; i++) {
+            if (Security.verifyPurchase(licenceKey, signedData.get(i), signatures.get(i))) {
+                valid++;
+            }
+        }
+        return valid;
+    }
+
+    @Benchmark
+    public int verifierOneByOne() {
+        int valid = 0;
+        for (int i = 0; i < count; i++) {
+            if (verifier.verify(signedData.get(i), signatures.get(i))) {
+                valid++;
+            }
+        }
+        return valid;
+    }
+
+    @Benchmark
+    public boolean[] verifierBatch() {
+        return verifier.verify(signedData, signatures, executor);
+    }
+}
@@ -0,0 +1,41 @@
+package com.mohamnag.inappbilling.helper;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Verifying the signature of one purchase against the licence key.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SecurityBenchmark {
+
+    String licenceKey;
+    String purchaseJson;
+    String signature;
+
+    @Setup
+    public void setUp() {
+        licenceKey = Fixtures.licenceKey();
+        purchaseJson = Fixtures.purchaseJson(42);
+        signature = Fixtures.sign(purchaseJson);
+    }
+
+    @Benchmark
+    public boolean verifyPurchase() {
+        return Security.verifyPurchase(licenceKey, purchaseJson, signature);
+    }
+}
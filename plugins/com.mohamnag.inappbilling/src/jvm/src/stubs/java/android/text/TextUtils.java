@@ -0,0 +1,11 @@
+package android.text;
+
+/**
+ * Stand-in for the android class, only what helper package uses.
+ */
+public class TextUtils {
+
+    public static boolean isEmpty(CharSequence str) {
+        return str == null || str.length() == 0;
+    }
+}
@@ -0,0 +1,136 @@
+package com.mohamnag.inappbilling.helper;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * The string decoder has to accept and reject exactly what the byte array
+ * decoder does, which is how decoding a string used to work.
+ */
+public class Base64Test {
+
+    private static final String[] SPECIAL = {
+        "",
+        "QQ==",
+        "QUI=",
+        "QUJD",
+        "QQ",
+        "QUI",
+        "Q",
+        "=",
+        "Q===",
+        "QQ==QQ==",
+        "QQ=\n",
+        "QU\nJD\n",
+        " QUJD",
+        "QUJD\t",
+        "QU JD",
+        "QUJD=",
+        "QU=D",
+        "QUJD*",
+        "-_-_",
+        "+/+/",
+        "QUJDü",
+        "QUJDĀ",
+        "QUJD\u007f"
+    };
+
+    @Test
+    public void specialCasesMatchByteDecoder() {
+        for (String input : SPECIAL) {
+            assertSameAsBytes(input, false);
+            assertSameAsBytes(input, true);
+        }
+    }
+
+    @Test
+    public void randomInputsMatchByteDecoder() {
+        Random random = new Random(42);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/-_= \n\t.";
+
+        for (int i = 0; i < 20000; i++) {
+            StringBuilder input = new StringBuilder();
+            int length = random.nextInt(12);
+            for (int j = 0; j < length; j++) {
+                input.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+
+            assertSameAsBytes(input.toString(), false);
+            assertSameAsBytes(input.toString(), true);
+        }
+    }
+
+    @Test
+    public void roundTrips() throws Base64DecoderException {
+        Random random = new Random(7);
+        for (int length = 0; length < 300; length++) {
+            byte[] bytes = new byte[length];
+            random.nextBytes(bytes);
+
+            assertArrayEquals(bytes, Base64.decode(Base64.encode(bytes)));
+            assertArrayEquals(bytes, Base64.decodeWebSafe(Base64.encodeWebSafe(bytes, false)));
+
+            String encoded = Base64.encode(bytes);
+            byte[] buffer = new byte[3 + Base64.maxDecodedLength(encoded.length())];
+            int decoded = Base64.decode(encoded, buffer, 3);
+            assertEquals(length, decoded);
+            assertArrayEquals(bytes, Arrays.copyOfRange(buffer, 3, 3 + decoded));
+        }
+    }
+
+    private static void assertSameAsBytes(String input, boolean webSafe) {
+        byte[] expected = null;
+        String expectedError = null;
+        try {
+            byte[] bytes = input.getBytes();
+            expected = webSafe ? Base64.decodeWebSafe(bytes) : Base64.decode(bytes);
+        }
+        catch (Base64DecoderException ex) {
+            expectedError = ex.getMessage();
+        }
+
+        byte[] result;
+        try {
+            result = webSafe ? Base64.decodeWebSafe(input) : Base64.decode(input);
+        }
+        catch (Base64DecoderException ex) {
+            if (expectedError == null) {
+                fail("'" + input + "' rejected, byte decoder accepts it: " + ex.getMessage());
+            }
+            return;
+        }
+
+        if (expectedError != null) {
+            fail("'" + input + "' accepted, byte decoder rejects it with " + expectedError);
+        }
+        assertArrayEquals("'" + input + "'", expected, result);
+
+        // decoding into a buffer takes only ASCII
+        byte[] buffer = new byte[Base64.maxDecodedLength(input.length())];
+        try {
+            int length = webSafe
+                    ? Base64.decodeWebSafe(input, buffer, 0)
+                    : Base64.decode(input, buffer, 0);
+            assertArrayEquals("'" + input + "'", expected, Arrays.copyOf(buffer, length));
+        }
+        catch (Base64DecoderException ex) {
+            if (isAscii(input)) {
+                fail("'" + input + "' rejected when decoding into buffer: " + ex.getMessage());
+            }
+        }
+    }
+
+    private static boolean isAscii(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) > 0x7f) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,71 @@
+package com.mohamnag.inappbilling.helper;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.json.JSONException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Reads the encoded bytes back the way decodeBinaryResult in
+ * www/inappbilling.js does.
+ */
+public class BinaryEncoderTest {
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static DataInputStream readHeader(byte[] encoded, int kind, String itemType, int count) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded));
+        assertEquals(BinaryEncoder.MAGIC, in.readUnsignedByte());
+        assertEquals(BinaryEncoder.VERSION, in.readUnsignedByte());
+        assertEquals(kind, in.readUnsignedByte());
+        assertEquals(itemType, readString(in));
+        assertEquals(count, in.readInt());
+
+        return in;
+    }
+
+    @Test
+    public void encodesProducts() throws IOException, JSONException {
+        List<SkuDetails> products = Fixtures.products(3);
+        // above int32 in micros
+        products.add(new SkuDetails(Fixtures.skuDetailsJson(5000)));
+
+        DataInputStream in = readHeader(BinaryEncoder.encodeProducts(products), BinaryEncoder.KIND_PRODUCTS, "", 4);
+        for (SkuDetails product : products) {
+            assertEquals(product.getSku(), readString(in));
+            assertEquals(product.getType(), readString(in));
+            assertEquals(product.getPrice(), readString(in));
+            assertEquals(product.getPriceMicros(), in.readLong());
+            assertEquals(product.getCurrency(), readString(in));
+            assertEquals(product.getTitle(), readString(in));
+            assertEquals(product.getDescription(), readString(in));
+        }
+        assertEquals(-1, in.read());
+
+        assertEquals(5000990000L, products.get(3).getPriceMicros());
+    }
+
+    @Test
+    public void encodesPurchases() throws IOException {
+        List<Purchase> purchases = new ArrayList<Purchase>(Fixtures.purchases(3));
+
+        DataInputStream in = readHeader(BinaryEncoder.encodePurchases("inapp", purchases), BinaryEncoder.KIND_PURCHASES, "inapp", 3);
+        for (Purchase purchase : purchases) {
+            assertEquals(purchase.getOrderId(), readString(in));
+            assertEquals("", readString(in));
+            assertEquals(purchase.getSku(), readString(in));
+            assertEquals("", readString(in));
+            assertEquals(purchase.getSignature(), readString(in));
+        }
+        assertEquals(-1, in.read());
+    }
+}
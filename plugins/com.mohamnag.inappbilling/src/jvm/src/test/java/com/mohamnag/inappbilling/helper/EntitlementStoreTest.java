@@ -0,0 +1,66 @@
+package com.mohamnag.inappbilling.helper;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.json.JSONException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EntitlementStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file() {
+        return new File(folder.getRoot(), "entitlements.json");
+    }
+
+    private static Purchase signed(String itemType, int i) throws JSONException {
+        String json = Fixtures.purchaseJson(i);
+        return new Purchase(itemType, json, Fixtures.sign(json));
+    }
+
+    @Test
+    public void replaceRevokesPurchasesOfPreviousRuns() throws JSONException {
+        EntitlementStore store = new EntitlementStore(file());
+        store.replace("inapp", Arrays.asList(signed("inapp", 1), signed("inapp", 2)));
+        store.replace("subs", Collections.singletonList(signed("subs", 3)));
+
+        // next run, product_2 was refunded meanwhile
+        store = new EntitlementStore(file());
+        store.replace("inapp", Collections.singletonList(signed("inapp", 1)));
+
+        assertTrue(store.isOwned("product_1"));
+        assertFalse(store.isOwned("product_2"));
+        // other item type is left alone
+        assertTrue(store.isOwned("product_3"));
+
+        store = new EntitlementStore(file());
+        assertEquals(2, store.getEntitlements().size());
+        assertFalse(store.isOwned("product_2"));
+    }
+
+    @Test
+    public void dropsEntriesFailingVerificationOnLoad() throws JSONException {
+        List<Purchase> purchases = new ArrayList<Purchase>();
+        purchases.add(signed("inapp", 1));
+        // signature of another purchase, as if the file was edited
+        purchases.add(new Purchase("inapp", Fixtures.purchaseJson(2), Fixtures.sign(Fixtures.purchaseJson(1))));
+        new EntitlementStore(file()).replace("inapp", purchases);
+
+        EntitlementStore unverified = new EntitlementStore(file());
+        assertTrue(unverified.isOwned("product_2"));
+
+        EntitlementStore verified = new EntitlementStore(file(), new PurchaseVerifier(Fixtures.licenceKey()));
+        assertTrue(verified.isOwned("product_1"));
+        assertFalse(verified.isOwned("product_2"));
+    }
+}
@@ -0,0 +1,164 @@
+package com.mohamnag.inappbilling.helper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.json.JSONArray;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Hammers one inventory from many writer and reader threads at once. Writers
+ * add and erase purchases in pairs, so a reader seeing only one of a pair has
+ * seen a half made change.
+ */
+public class InventoryStressTest {
+
+    private static final int WRITERS = 4;
+    private static final int READERS = 4;
+    private static final int PAIRS_PER_WRITER = 50;
+    private static final int ROUNDS = 2000;
+
+    @Test(timeout = 120000)
+    public void readersSeeOnlyWholeChangesAndIndexesStayInSync() throws Exception {
+        final Inventory inventory = new Inventory(null);
+        final List<Purchase> purchases = Fixtures.purchases(WRITERS * PAIRS_PER_WRITER * 2);
+
+        // follows the deltas, like the JavaScript side of watchInventory
+        final Map<String, Purchase> followed = new HashMap<String, Purchase>();
+        inventory.setChangeListener(new Inventory.ChangeListener() {
+
+            @Override
+            public void onInventoryChanged(InventoryChanges changes) {
+                synchronized (followed) {
+                    if (changes.isReset()) {
+                        followed.clear();
+                    }
+                    for (Purchase p : changes.getAddedPurchases()) {
+                        followed.put(p.getSku(), p);
+                    }
+                    for (Purchase p : changes.getChangedPurchases()) {
+                        followed.put(p.getSku(), p);
+                    }
+                    for (Purchase p : changes.getRemovedPurchases()) {
+                        followed.remove(p.getSku());
+                    }
+                }
+            }
+
+        });
+
+        ExecutorService threads = Executors.newFixedThreadPool(WRITERS + READERS);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        List<Future<?>> writers = new ArrayList<Future<?>>();
+        List<Future<?>> readers = new ArrayList<Future<?>>();
+
+        for (int w = 0; w < WRITERS; w++) {
+            final int first = w * PAIRS_PER_WRITER * 2;
+            writers.add(threads.submit(new Callable<Void>() {
+
+                @Override
+                public Void call() throws Exception {
+                    Random random = new Random(first);
+                    start.await();
+
+                    for (int round = 0; round < ROUNDS; round++) {
+                        int pair = first + 2 * random.nextInt(PAIRS_PER_WRITER);
+                        List<Purchase> both = purchases.subList(pair, pair + 2);
+
+                        if (random.nextBoolean()) {
+                            inventory.addPurchases(both);
+                        }
+                        else {
+                            inventory.erasePurchases(Arrays.asList(both.get(0).getSku(), both.get(1).getSku()));
+                        }
+                    }
+
+                    // leave all own purchases in
+                    inventory.addPurchases(purchases.subList(first, first + PAIRS_PER_WRITER * 2));
+                    return null;
+                }
+
+            }));
+        }
+
+        for (int r = 0; r < READERS; r++) {
+            readers.add(threads.submit(new Callable<Void>() {
+
+                @Override
+                public Void call() throws Exception {
+                    start.await();
+
+                    while (writing.get()) {
+                        assertWholePairs(inventory.getAllPurchases());
+
+                        // serialized form is a consistent snapshot too
+                        JSONArray json = new JSONArray(inventory.getAllPurchasesJSONString());
+                        Set<String> skus = new HashSet<String>();
+                        for (int i = 0; i < json.length(); i++) {
+                            skus.add(json.getJSONObject(i).getString("productId"));
+                        }
+                        assertEquals(json.length(), skus.size());
+                        for (String sku : skus) {
+                            int index = Integer.parseInt(sku.substring("product_".length()));
+                            assertTrue(sku, skus.contains("product_" + (index ^ 1)));
+                        }
+                    }
+                    return null;
+                }
+
+            }));
+        }
+
+        start.countDown();
+        for (Future<?> writer : writers) {
+            writer.get();
+        }
+        writing.set(false);
+        for (Future<?> reader : readers) {
+            reader.get();
+        }
+        threads.shutdown();
+        assertTrue(threads.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertEquals(purchases.size(), inventory.getPurchaseCount());
+        for (Purchase purchase : purchases) {
+            assertSame(purchase, inventory.getPurchase(purchase.getSku()));
+            assertSame(purchase, inventory.getPurchaseByOrderId(purchase.getOrderId()));
+            assertSame(purchase, inventory.getPurchaseByToken(purchase.getToken()));
+        }
+        assertEquals(purchases.size(), inventory.getAllOwnedSkus("inapp").size() + inventory.getAllOwnedSkus("subs").size());
+
+        synchronized (followed) {
+            assertEquals(new HashSet<String>(inventory.getAllOwnedSkus()), followed.keySet());
+        }
+    }
+
+    private static void assertWholePairs(List<Purchase> snapshot) {
+        Set<String> skus = new HashSet<String>();
+        for (Purchase purchase : snapshot) {
+            skus.add(purchase.getSku());
+        }
+
+        for (String sku : skus) {
+            int index = Integer.parseInt(sku.substring("product_".length()));
+            assertTrue("half of a pair: " + sku, skus.contains("product_" + (index ^ 1)));
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.mohamnag.inappbilling.helper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.json.JSONException;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class InventoryTest {
+
+    private Inventory inventory;
+    private List<Purchase> purchases;
+
+    @Before
+    public void setUp() {
+        inventory = new Inventory(null);
+        purchases = Fixtures.purchases(20);
+        inventory.addPurchases(purchases);
+    }
+
+    @Test
+    public void findsPurchasesByEveryIndex() {
+        for (Purchase purchase : purchases) {
+            assertSame(purchase, inventory.getPurchase(purchase.getSku()));
+            assertSame(purchase, inventory.getPurchaseByOrderId(purchase.getOrderId()));
+            assertSame(purchase, inventory.getPurchaseByToken(purchase.getToken()));
+        }
+
+        // every 10th is a subscription
+        assertEquals(2, inventory.getAllOwnedSkus("subs").size());
+        assertEquals(18, inventory.getAllOwnedSkus("inapp").size());
+    }
+
+    @Test
+    public void erasingRemovesFromEveryIndex() {
+        Purchase purchase = purchases.get(10);
+        inventory.erasePurchaseByOrderId(purchase.getOrderId());
+
+        assertNull(inventory.getPurchase(purchase.getSku()));
+        assertNull(inventory.getPurchaseByOrderId(purchase.getOrderId()));
+        assertNull(inventory.getPurchaseByToken(purchase.getToken()));
+        assertFalse(inventory.getAllOwnedSkus("subs").contains(purchase.getSku()));
+        assertEquals(19, inventory.getPurchaseCount());
+    }
+
+    @Test
+    public void replacingPurchaseOfSameSkuDropsOldIndexEntries() throws JSONException {
+        Purchase old = purchases.get(3);
+        Purchase renewed = new Purchase("subs", old.getOriginalJson()
+                .replace(old.getOrderId(), "GPA.renewed")
+                .replace(old.getToken(), "renewed-token"), "");
+
+        inventory.addPurchase(renewed);
+
+        assertSame(renewed, inventory.getPurchase(old.getSku()));
+        assertNull(inventory.getPurchaseByOrderId(old.getOrderId()));
+        assertNull(inventory.getPurchaseByToken(old.getToken()));
+        assertSame(renewed, inventory.getPurchaseByOrderId("GPA.renewed"));
+        assertFalse(inventory.getAllOwnedSkus("inapp").contains(old.getSku()));
+        assertTrue(inventory.getAllOwnedSkus("subs").contains(old.getSku()));
+    }
+
+    @Test
+    public void testPurchasesWithoutOrderIdAreFoundBySku() throws JSONException {
+        Purchase test = new Purchase("inapp", "{\"productId\":\"android.test.purchased\",\"purchaseToken\":\"t\"}", "");
+        inventory.addPurchase(test);
+
+        assertSame(test, inventory.getPurchase("android.test.purchased"));
+        assertNull(inventory.getPurchaseByOrderId(""));
+
+        inventory.erasePurchase("android.test.purchased");
+        assertNull(inventory.getPurchaseByToken("t"));
+    }
+
+    @Test
+    public void replacePurchasesRemovesOnlyMissingOfThatType() {
+        Purchase keptInapp = purchases.get(1);
+        inventory.replacePurchases("inapp", Collections.singletonList(keptInapp));
+
+        assertEquals(Arrays.asList(keptInapp.getSku()), inventory.getAllOwnedSkus("inapp"));
+        assertEquals(2, inventory.getAllOwnedSkus("subs").size());
+        assertEquals(3, inventory.getPurchaseCount());
+    }
+
+    @Test
+    public void unchangedAddKeepsVersion() {
+        long version = inventory.getPurchasesVersion();
+        inventory.addPurchases(purchases);
+
+        assertEquals(version, inventory.getPurchasesVersion());
+    }
+
+    @Test
+    public void erasedProductsAreReportedAsRemoved() throws JSONException {
+        inventory.addSkuDetails(Fixtures.products(3));
+        long version = inventory.getProductsVersion();
+
+        final List<InventoryChanges> received = new ArrayList<InventoryChanges>();
+        inventory.setChangeListener(new Inventory.ChangeListener() {
+
+            @Override
+            public void onInventoryChanged(InventoryChanges changes) {
+                received.add(changes);
+            }
+
+        });
+        inventory.eraseSkuDetails(Arrays.asList("product_1", "unknown"));
+        inventory.eraseSkuDetails(Arrays.asList("unknown"));
+
+        assertFalse(inventory.hasDetails("product_1"));
+        assertEquals(2, inventory.getAllProducts().size());
+        assertTrue(version != inventory.getProductsVersion());
+
+        // reset on subscribe, then one change
+        assertEquals(2, received.size());
+        InventoryChanges changes = received.get(1);
+        assertEquals(1, changes.getRemovedProducts().size());
+        assertEquals("product_1", changes.getRemovedProducts().get(0).getSku());
+        assertEquals("product_1", changes.toJavaScriptJson()
+                .getJSONObject("products").getJSONArray("removed").getJSONObject(0).getString("id"));
+    }
+}
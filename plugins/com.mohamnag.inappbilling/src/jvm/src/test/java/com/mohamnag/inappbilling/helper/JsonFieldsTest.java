@@ -0,0 +1,100 @@
+package com.mohamnag.inappbilling.helper;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class JsonFieldsTest {
+
+    @Test
+    public void readsValuesLikeJSONObject() throws JSONException {
+        String[] inputs = {
+            Fixtures.purchaseJson(3),
+            Fixtures.skuDetailsJson(3),
+            "{\"a\":\"x\\\"y\\\\z\\/\",\"b\":\"\\u00fc\\u20ac\\n\\t\",\"c\":\"plain\"}",
+            " { \"a\" : \"spaced\" ,\n\t\"b\" : 12 , \"c\" : -1.5e3 } ",
+            "{\"a\":true,\"b\":false,\"c\":12345678901234}",
+            "{\"n\":{\"a\":\"not this\",\"x\":[1,{\"b\":\"}]\"}]},\"a\":\"this\",\"l\":[\"[\",\"{\"],\"b\":1,\"c\":\"\"}"
+        };
+
+        for (String input : inputs) {
+            JSONObject expected = new JSONObject(input);
+            String[] keys = expected.keySet().toArray(new String[0]);
+            String[] values = JsonFields.extract(input, keys);
+
+            for (int i = 0; i < keys.length; i++) {
+                Object value = expected.get(keys[i]);
+                if (value instanceof JSONObject || value instanceof JSONArray) {
+                    assertNull(keys[i], values[i]);
+                }
+                else if (value instanceof String) {
+                    assertEquals(input + " " + keys[i], value, values[i]);
+                }
+                else {
+                    // numbers and literals as they are written
+                    assertEquals(input + " " + keys[i], value, JSONObject.stringToValue(values[i]));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void missingKeysAreNull() throws JSONException {
+        assertArrayEquals(new String[]{"1", null}, JsonFields.extract("{\"a\":\"1\"}", "a", "b"));
+        assertArrayEquals(new String[]{null}, JsonFields.extract("{}", "a"));
+        assertArrayEquals(new String[]{null}, JsonFields.extract(" {  } ", "a"));
+    }
+
+    @Test
+    public void numberHelpers() {
+        assertEquals(0, JsonFields.toLong(null));
+        assertEquals(1400000000000L, JsonFields.toLong("1400000000000"));
+        assertEquals(1500, JsonFields.toLong("1.5e3"));
+        assertEquals(0, JsonFields.toLong("abc"));
+        assertEquals("", JsonFields.orEmpty(null));
+    }
+
+    @Test
+    public void rejectsBrokenJson() {
+        String[] inputs = {
+            null,
+            "",
+            "[]",
+            "{",
+            "{\"a\"}",
+            "{\"a\":}",
+            "{\"a\":\"x\"",
+            "{\"a\":\"x\" \"b\":1}",
+            "{\"a\":\"unterminated}",
+            "{\"a\":\"\\u12\"}",
+            "{\"a\":\"\\uzzzz\"}"
+        };
+
+        for (String input : inputs) {
+            try {
+                JsonFields.extract(input, "a");
+                fail("accepted: " + input);
+            }
+            catch (JSONException ex) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void purchaseFallsBackToPurchaseToken() throws JSONException {
+        Purchase withToken = new Purchase("{\"productId\":\"p\",\"token\":\"t\",\"purchaseToken\":\"pt\"}", "");
+        Purchase withPurchaseToken = new Purchase("{\"productId\":\"p\",\"purchaseToken\":\"pt\"}", "");
+
+        assertEquals("t", withToken.getToken());
+        assertEquals("pt", withPurchaseToken.getToken());
+        assertEquals("", withPurchaseToken.getOrderId());
+        assertEquals(0, withPurchaseToken.getPurchaseState());
+    }
+}
@@ -0,0 +1,98 @@
+package com.mohamnag.inappbilling.helper;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.json.JSONException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PurchaseJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file() {
+        return new File(folder.getRoot(), "journal");
+    }
+
+    private static List<String> skus(PurchaseJournal journal) {
+        List<String> ret = new ArrayList<String>();
+        for (PurchaseJournal.Entry entry : journal.getOutstanding()) {
+            ret.add(entry.getSku());
+        }
+
+        return ret;
+    }
+
+    @Test
+    public void replaysOutstandingPurchases() throws JSONException {
+        List<Purchase> purchases = Fixtures.purchases(3);
+
+        PurchaseJournal journal = new PurchaseJournal(file());
+        for (Purchase purchase : purchases) {
+            journal.initiated(purchase.getSku(), purchase.getItemType());
+        }
+        journal.completed(purchases.get(0));
+        journal.completed(purchases.get(1));
+        journal.closed(purchases.get(1).getSku(), "consumed");
+
+        List<PurchaseJournal.Entry> replayed = new PurchaseJournal(file()).getOutstanding();
+        assertEquals(2, replayed.size());
+
+        PurchaseJournal.Entry completed = replayed.get(0);
+        assertEquals("product_0", completed.getSku());
+        assertTrue(completed.isCompleted());
+        assertEquals(purchases.get(0).getOriginalJson(), completed.toPurchase().getOriginalJson());
+        assertEquals(purchases.get(0).getSignature(), completed.toPurchase().getSignature());
+
+        PurchaseJournal.Entry initiated = replayed.get(1);
+        assertEquals("product_2", initiated.getSku());
+        assertEquals(purchases.get(2).getItemType(), initiated.getItemType());
+        assertFalse(initiated.isCompleted());
+    }
+
+    @Test
+    public void skipsBrokenLastLine() throws IOException {
+        PurchaseJournal journal = new PurchaseJournal(file());
+        journal.initiated("product_0", "inapp");
+
+        // cut off while appending
+        FileOutputStream out = new FileOutputStream(file(), true);
+        try {
+            out.write("{\"op\":\"initiated\",\"sku\":\"prod".getBytes("UTF-8"));
+        }
+        finally {
+            out.close();
+        }
+
+        journal = new PurchaseJournal(file());
+        assertEquals(1, journal.getOutstanding().size());
+
+        // appended on a new line after the broken one
+        journal.initiated("product_1", "inapp");
+        assertEquals(2, skus(new PurchaseJournal(file())).size());
+    }
+
+    @Test
+    public void compactionKeepsOutstandingPurchases() {
+        PurchaseJournal journal = new PurchaseJournal(file());
+        journal.initiated("kept", "inapp");
+        for (int i = 0; i < PurchaseJournal.COMPACT_MIN_RECORDS; i++) {
+            journal.initiated("product_" + i, "inapp");
+            journal.closed("product_" + i, "cancelled");
+        }
+
+        List<String> replayed = skus(new PurchaseJournal(file()));
+        assertEquals(1, replayed.size());
+        assertEquals("kept", replayed.get(0));
+        assertTrue(file().length() < 200);
+    }
+}
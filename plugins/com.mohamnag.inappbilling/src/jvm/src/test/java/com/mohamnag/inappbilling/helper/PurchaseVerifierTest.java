@@ -0,0 +1,69 @@
+package com.mohamnag.inappbilling.helper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PurchaseVerifierTest {
+
+    @Test
+    public void agreesWithSecurity() {
+        String key = Fixtures.licenceKey();
+        PurchaseVerifier verifier = new PurchaseVerifier(key);
+
+        String json = Fixtures.purchaseJson(1);
+        String signature = Fixtures.sign(json);
+        String otherSignature = Fixtures.sign(Fixtures.purchaseJson(2));
+
+        assertTrue(verifier.verify(json, signature));
+        assertTrue(Security.verifyPurchase(key, json, signature));
+
+        assertFalse(verifier.verify(json, otherSignature));
+        assertFalse(Security.verifyPurchase(key, json, otherSignature));
+
+        assertFalse(verifier.verify(json, ""));
+        assertFalse(verifier.verify("", signature));
+        assertFalse(verifier.verify(json, "not base64!"));
+    }
+
+    @Test
+    public void batchGivesSameResultsAsOneByOne() {
+        PurchaseVerifier verifier = new PurchaseVerifier(Fixtures.licenceKey());
+
+        List<String> signedData = new ArrayList<String>();
+        List<String> signatures = new ArrayList<String>();
+        for (String[] purchase : Fixtures.purchaseData(100, true)) {
+            signedData.add(purchase[0]);
+            signatures.add(purchase[1]);
+        }
+        // break every 7th
+        for (int i = 0; i < signatures.size(); i += 7) {
+            signatures.set(i, signatures.get((i + 1) % signatures.size()));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            boolean[] batch = verifier.verify(signedData, signatures, executor);
+
+            assertEquals(signedData.size(), batch.length);
+            for (int i = 0; i < batch.length; i++) {
+                assertEquals("item " + i, i % 7 != 0, batch[i]);
+                assertEquals(verifier.verify(signedData.get(i), signatures.get(i)), batch[i]);
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsBrokenKey() {
+        new PurchaseVerifier("AAAA");
+    }
+}
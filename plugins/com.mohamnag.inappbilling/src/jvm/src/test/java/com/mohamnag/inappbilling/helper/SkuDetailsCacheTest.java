@@ -0,0 +1,67 @@
+package com.mohamnag.inappbilling.helper;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Locale;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SkuDetailsCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SkuDetailsCache open(File file, long ttl) {
+        return new SkuDetailsCache(file, Fixtures.PACKAGE_NAME, Locale.GERMANY, ttl);
+    }
+
+    @Test
+    public void survivesRestart() {
+        File file = new File(folder.getRoot(), "skus.json");
+        SkuDetailsCache written = open(file, 60000);
+        written.put(Fixtures.products(3));
+        written.save();
+
+        SkuDetailsCache cache = open(file, 60000);
+        for (int i = 0; i < 3; i++) {
+            SkuDetails details = cache.get("product_" + i);
+            assertNotNull(details);
+            assertEquals(Fixtures.skuDetailsJson(i), details.getOriginalJson());
+            assertTrue(cache.isFresh("product_" + i));
+        }
+    }
+
+    @Test
+    public void staleEntriesAreStillReturned() {
+        SkuDetailsCache cache = open(new File(folder.getRoot(), "skus.json"), -1);
+        cache.put(Fixtures.products(1));
+
+        assertNotNull(cache.get("product_0"));
+        assertFalse(cache.isFresh("product_0"));
+    }
+
+    @Test
+    public void removedEntriesAreGoneAfterRestart() {
+        File file = new File(folder.getRoot(), "skus.json");
+        SkuDetailsCache cache = open(file, 60000);
+        cache.put(Fixtures.products(3));
+        cache.save();
+        assertTrue(cache.remove(Arrays.asList("product_1", "unknown")));
+        assertFalse(cache.remove(Arrays.asList("unknown")));
+        cache.save();
+
+        assertNull(cache.get("product_1"));
+
+        cache = open(file, 60000);
+        assertNotNull(cache.get("product_0"));
+        assertNull(cache.get("product_1"));
+        assertNotNull(cache.get("product_2"));
+    }
+}
@@ -18,11 +18,133 @@
  * @param {Object}  error   the information about the error
  * @param {int}     error.errorCode one of the error codes defined with ERR_*
  * @param {string}  error.msg   a textual message intended for developer in order to make debuging easier
+ * @param {string=} error.itemType  [android] the item type (inapp or subs) of the failed query, if the error belongs to only one type
+ * @param {Array.<Object>=} error.causes    [android] the errors of each sub query, when several of them have failed
  */
 
 var noop = function() {
 };
 
+/***
+ * Decodes lists of products or purchases sent by android in binary form, the 
+ * format is described in BinaryEncoder.java, keep both in sync.
+ * 
+ * @param {ArrayBuffer} buffer
+ * @returns {{kind: int, itemType: string, items: Array}}
+ * @private
+ */
+var decodeBinaryResult = function(buffer) {
+    var view = new DataView(buffer);
+    var bytes = new Uint8Array(buffer);
+    var offset = 0;
+
+    var readInt = function() {
+        var value = view.getInt32(offset, false);
+        offset += 4;
+        return value;
+    };
+
+    // int64 as two halves, exact up to 2^53 which is far above any price
+    var readLong = function() {
+        var high = view.getInt32(offset, false);
+        var low = view.getUint32(offset + 4, false);
+        offset += 8;
+        return high * 4294967296 + low;
+    };
+
+    // UTF-8, as TextDecoder is not available on older WebViews
+    var readString = function() {
+        var end = offset + 4 + view.getUint32(offset, false);
+        var chars = [];
+        offset += 4;
+
+        while (offset < end) {
+            var b = bytes[offset++];
+            var c;
+            if (b < 0x80) {
+                c = b;
+            }
+            else if (b < 0xE0) {
+                c = ((b & 0x1F) << 6) | (bytes[offset++] & 0x3F);
+            }
+            else if (b < 0xF0) {
+                c = ((b & 0x0F) << 12) | ((bytes[offset++] & 0x3F) << 6) | (bytes[offset++] & 0x3F);
+            }
+            else {
+                c = ((b & 0x07) << 18) | ((bytes[offset++] & 0x3F) << 12) | ((bytes[offset++] & 0x3F) << 6) | (bytes[offset++] & 0x3F);
+                c -= 0x10000;
+                chars.push(0xD800 + (c >> 10));
+                c = 0xDC00 + (c & 0x3FF);
+            }
+            chars.push(c);
+        }
+
+        // in slices, too many arguments would overflow the stack
+        var ret = '';
+        for (var i = 0; i < chars.length; i += 4096) {
+            ret += String.fromCharCode.apply(null, chars.slice(i, i + 4096));
+        }
+        return ret;
+    };
+
+    if (bytes[0] !== BINARY_MAGIC || bytes[1] !== BINARY_VERSION) {
+        throw new Error('unknown binary result format');
+    }
+    var kind = bytes[2];
+    offset = 3;
+
+    var itemType = readString();
+    var count = readInt();
+    var items = new Array(count);
+
+    for (var i = 0; i < count; i++) {
+        if (kind === BINARY_KIND_PRODUCTS) {
+            items[i] = {
+                id: readString(),
+                type: readString(),
+                price: readString(),
+                priceMicros: readLong(),
+                currencyCode: readString(),
+                title: readString(),
+                description: readString()
+            };
+        }
+        else {
+            items[i] = {
+                id: readString(),
+                originalId: readString(),
+                productId: readString(),
+                expirationDate: readString(),
+                verificationPayload: readString()
+            };
+        }
+    }
+
+    return {
+        kind: kind,
+        itemType: itemType,
+        items: items
+    };
+};
+
+var BINARY_MAGIC = 0x49;
+var BINARY_VERSION = 1;
+var BINARY_KIND_PRODUCTS = 1;
+
+/***
+ * Wraps a success callback receiving a list, so it gets the list whether 
+ * native side has sent it as JSON or in binary form.
+ * 
+ * @param {Function} success
+ * @returns {Function}
+ * @private
+ */
+var decodingList = function(success) {
+    return function(result) {
+        success(result instanceof ArrayBuffer ? decodeBinaryResult(result).items : result);
+    };
+};
+
 /**
  * @constructor
  * @alias module:InAppBilling
@@ -83,6 +205,26 @@ InAppBilling.prototype.ERR_INVALID_PRODUCT_ID = ERROR_CODES_BASE + 22;
  * @type @exp;ERROR_CODES_BASE|Number
  */
 InAppBilling.prototype.ERR_INVALID_PURCHASE_ID = ERROR_CODES_BASE + 23;
+/**
+ * [android] item requested to be bought is already owned
+ * 
+ * @type @exp;ERROR_CODES_BASE|Number
+ */
+InAppBilling.prototype.ERR_PURCHASE_OWNED_ITEM = ERROR_CODES_BASE + 24;
+/**
+ * too many requests are already waiting to be processed by native side, 
+ * request should be retried later
+ * 
+ * @type @exp;ERROR_CODES_BASE|Number
+ */
+InAppBilling.prototype.ERR_BILLING_QUEUE_FULL = ERROR_CODES_BASE + 25;
+/**
+ * [android] billing service has disconnected and did not come back in time, 
+ * request may be retried later
+ * 
+ * @type @exp;ERROR_CODES_BASE|Number
+ */
+InAppBilling.prototype.ERR_SERVICE_DISCONNECTED = ERROR_CODES_BASE + 26;
 
 /***
  * This function accepts and outputs all the logs, both from native and from JS
@@ -96,6 +238,235 @@ InAppBilling.prototype.log = function(msg) {
     console.log("InAppBilling[js]: " + msg);
 };
 
+/**
+ * Called when the details of already returned products have changed, for 
+ * example when products were returned from cache on init and a later refresh 
+ * from store has found a new price. Only called on android.
+ * 
+ * Assign your own function to `inappbilling.onProductsChanged` to receive these.
+ * 
+ * @callback productsChangedCallback
+ * @param {Array.<ProductDetails>} products   only the products which have changed
+ */
+InAppBilling.prototype.onProductsChanged = noop;
+
+/***
+ * Called from native side with the changed products.
+ * 
+ * @param {Array.<ProductDetails>} products
+ * @private
+ */
+InAppBilling.prototype.productsChanged = function(products) {
+    if (this.options.showLog === true) {
+        this.log('products changed: ' + JSON.stringify(products));
+    }
+    this.onProductsChanged(products);
+};
+
+/**
+ * Called periodically with the same data as returned by [getMetrics]{@link module:InAppBilling#getMetrics}, 
+ * if both android-iabplugin-metrics and android-iabplugin-metrics-dump-interval 
+ * are set in config.xml. Only called on android.
+ * 
+ * Assign your own function to `inappbilling.onMetrics` to receive these.
+ * 
+ * @callback metricsCallback
+ * @param {Object} metrics
+ */
+InAppBilling.prototype.onMetrics = noop;
+
+/***
+ * Called from native side with the current metrics.
+ * 
+ * @param {Object} metrics
+ * @private
+ */
+InAppBilling.prototype.metricsDumped = function(metrics) {
+    this.onMetrics(metrics);
+};
+
+/**
+ * Returns the timings and counters collected by native side. Latencies are 
+ * only recorded if android-iabplugin-metrics is set to true in config.xml, 
+ * they are given in milliseconds as count, min, mean, p50, p90, p99 and max:
+ * 
+ * - actions: per action, time from the call until its result, and number of 
+ *   failures per error code
+ * - calls: per method of play store billing service, time of the call
+ * - skuCache, coalescedRequests, connection, log: statistics of product 
+ *   details cache, shared requests, billing service connection and dropped 
+ *   log lines
+ * - verification: if android-iabplugin-verification-url is set, requests made 
+ *   to verification server and verdicts taken from cache
+ * 
+ * Only available on android.
+ * 
+ * @param {metricsCallback} success
+ * @param {errorCallback} fail
+ */
+InAppBilling.prototype.getMetrics = function(success, fail) {
+    this.log('getMetrics called!');
+    return cordova.exec(success, fail, "InAppBillingPlugin", "getMetrics", []);
+};
+
+/**
+ * Receives the changes of products and purchases known to native side. Only 
+ * called on android.
+ * 
+ * The first call is a reset with all the products and purchases as added, 
+ * after that only the items which were added, changed or removed by each 
+ * change are passed. Whenever `reset` is true, whatever was known before shall 
+ * be replaced.
+ * 
+ * @callback inventoryChangesCallback
+ * @param {Object} changes
+ * @param {Boolean} changes.reset
+ * @param {{added: Array.<ProductDetails>, changed: Array.<ProductDetails>, removed: Array.<ProductDetails>}} changes.products
+ * @param {{added: Array.<Purchase>, changed: Array.<Purchase>, removed: Array.<Purchase>}} changes.purchases
+ */
+
+/**
+ * Listeners registered with [watchInventory]{@link module:InAppBilling#watchInventory}.
+ * 
+ * @private
+ */
+InAppBilling.prototype.inventoryListeners = [];
+
+/**
+ * Inventory as known from the changes received so far, by product ID, null 
+ * while not subscribed on native side.
+ * 
+ * @private
+ */
+InAppBilling.prototype.watchedInventory = null;
+
+/**
+ * Starts passing the changes of inventory to the listener, instead of asking 
+ * for full lists again. Only available on android.
+ * 
+ * The listener first receives a reset with the whole inventory, only the 
+ * listener being added gets it, the ones already watching are not affected.
+ * Native side is subscribed once, for the first listener.
+ * 
+ * @param {inventoryChangesCallback} listener
+ * @param {errorCallback=} fail
+ */
+InAppBilling.prototype.watchInventory = function(listener, fail) {
+    this.log('watchInventory called!');
+
+    var self = this;
+    if (this.inventoryListeners.indexOf(listener) < 0) {
+        // copy, the list on prototype is shared
+        this.inventoryListeners = this.inventoryListeners.concat([listener]);
+    }
+
+    if (this.watchedInventory) {
+        // already subscribed, the reset native side has sent is replayed from what is known
+        var known = this.watchedInventory;
+        setTimeout(function() {
+            if (self.watchedInventory === known && self.inventoryListeners.indexOf(listener) >= 0) {
+                listener(inventoryReset(known));
+            }
+        }, 0);
+        return;
+    }
+
+    var watched = this.watchedInventory = {products: {}, purchases: {}};
+
+    var dispatch = function(changes) {
+        // the finished subscription ends without changes
+        if (!changes || self.watchedInventory !== watched) {
+            return;
+        }
+        if (self.options.showLog === true) {
+            self.log('inventory changed: ' + JSON.stringify(changes));
+        }
+        followInventory(watched, changes);
+        for (var i = 0; i < self.inventoryListeners.length; i++) {
+            self.inventoryListeners[i](changes);
+        }
+    };
+
+    var failed = function(err) {
+        if (self.watchedInventory === watched) {
+            self.watchedInventory = null;
+        }
+        (fail || noop)(err);
+    };
+
+    return cordova.exec(dispatch, failed, "InAppBillingPlugin", "watchInventory", []);
+};
+
+/***
+ * Applies changes to the known inventory.
+ * 
+ * @param {{products: Object, purchases: Object}} watched
+ * @param {Object} changes
+ * @private
+ */
+var followInventory = function(watched, changes) {
+    if (changes.reset) {
+        watched.products = {};
+        watched.purchases = {};
+    }
+
+    var follow = function(known, delta) {
+        var i;
+        for (i = 0; i < delta.removed.length; i++) {
+            delete known[delta.removed[i].productId || delta.removed[i].id];
+        }
+        for (i = 0; i < delta.added.length; i++) {
+            known[delta.added[i].productId || delta.added[i].id] = delta.added[i];
+        }
+        for (i = 0; i < delta.changed.length; i++) {
+            known[delta.changed[i].productId || delta.changed[i].id] = delta.changed[i];
+        }
+    };
+
+    follow(watched.products, changes.products);
+    follow(watched.purchases, changes.purchases);
+};
+
+/***
+ * Builds a reset holding the whole known inventory.
+ * 
+ * @param {{products: Object, purchases: Object}} watched
+ * @returns {Object}
+ * @private
+ */
+var inventoryReset = function(watched) {
+    var values = function(known) {
+        return Object.keys(known).map(function(key) {
+            return known[key];
+        });
+    };
+
+    return {
+        reset: true,
+        products: {added: values(watched.products), changed: [], removed: []},
+        purchases: {added: values(watched.purchases), changed: [], removed: []}
+    };
+};
+
+/**
+ * Stops passing the changes of inventory to the listener. Native side is 
+ * unsubscribed once the last listener is removed.
+ * 
+ * @param {inventoryChangesCallback} listener
+ */
+InAppBilling.prototype.unwatchInventory = function(listener) {
+    this.log('unwatchInventory called!');
+
+    this.inventoryListeners = this.inventoryListeners.filter(function(l) {
+        return l !== listener;
+    });
+
+    if (this.inventoryListeners.length === 0 && this.watchedInventory) {
+        this.watchedInventory = null;
+        return cordova.exec(noop, noop, "InAppBillingPlugin", "unwatchInventory", []);
+    }
+};
+
 /**
  * The success callback for [init]{@link module:InAppBilling#init}.
  * 
@@ -111,17 +482,19 @@ InAppBilling.prototype.log = function(msg) {
  * @param {errorCallback} fail  the failure callback
  * @param {Object} options  options for configuring the plugin
  * @param {Boolean=} options.showLog    [true] wether to show logs or not, this is strongly recommended to be set to false for production
+ * @param {Boolean=} options.binaryResults    [false] android only, whether native side sends lists of products and purchases in a compact binary form instead of JSON, which is faster for large lists. Callbacks get the same objects either way
  * @param {{(String|Array.<String>)}} productIds   an optional list of product IDs to load after initialization was successful
  */
 InAppBilling.prototype.init = function(success, fail, options, productIds) {
     options || (options = {});
 
     this.options = {
-        showLog: options.showLog || false
+        showLog: options.showLog || false,
+        binaryResults: options.binaryResults || false
     };
 
     // show log or mute the log
-    //TODO: this shall mute logs on native too
+    // showLog is passed to native on init, android then stops sending its logs
     if (this.options.showLog === true) {
         this.log = InAppBilling.prototype.log;
     }
@@ -156,10 +529,10 @@ InAppBilling.prototype.init = function(success, fail, options, productIds) {
 
     // TODO: the arguments to init should be checked on iOS again to accept show log
     if (hasProductIds) {
-        return cordova.exec(success, fail, "InAppBillingPlugin", "init", [productIds, this.options.showLog]);
+        return cordova.exec(decodingList(success), fail, "InAppBillingPlugin", "init", [productIds, this.options.showLog, this.options.binaryResults]);
     } else {
         //No SKUs
-        return cordova.exec(success, fail, "InAppBillingPlugin", "init", [[], this.options.showLog]);
+        return cordova.exec(decodingList(success), fail, "InAppBillingPlugin", "init", [[], this.options.showLog, this.options.binaryResults]);
     }
 };
 
@@ -180,6 +553,51 @@ InAppBilling.prototype.init = function(success, fail, options, productIds) {
  * @param {Array.<Purchase>} purchaseList
  */
 
+/**
+ * The progress callback for [getPurchases]{@link module:InAppBilling#getPurchases},
+ * called for every page of purchases as soon as native side has loaded it.
+ * Only called on android.
+ * 
+ * @callback getPurchasesProgressCallback
+ * @param {Array.<Purchase>} page   purchases of this page
+ * @param {string} itemType the type of purchases in this page, inapp or subs
+ */
+
+/***
+ * Builds the success handler for calls which receive purchases page by page 
+ * from native side. Pages are collected until native side reports that it 
+ * is done, then the whole list is passed to success. A plain array (like the 
+ * one returned on iOS) is passed on directly.
+ * 
+ * @param {getPurchasesSuccessCallback} success
+ * @param {getPurchasesProgressCallback=} progress
+ * @private
+ */
+var collectPurchasePages = function(success, progress) {
+    var purchases = [];
+
+    return function(result) {
+        if (result instanceof ArrayBuffer) {
+            var decoded = decodeBinaryResult(result);
+            result = {
+                itemType: decoded.itemType,
+                page: decoded.items
+            };
+        }
+
+        if (result instanceof Array) {
+            success(result);
+        }
+        else if (result.page) {
+            purchases = purchases.concat(result.page);
+            progress && progress(result.page, result.itemType);
+        }
+        else if (result.done) {
+            success(purchases);
+        }
+    };
+};
+
 //TODO: check the order of purchases retuned in iOS and android native!
 /**
  * This will return bought products in a chronological order (oldest first)
@@ -197,12 +615,16 @@ InAppBilling.prototype.init = function(success, fail, options, productIds) {
  * This is best practice to always look at this list on startup to activate 
  * products in your application.
  * 
+ * On accounts with many purchases, the optional progress callback can be used 
+ * to show the purchases as they are loaded.
+ * 
  * @param {getPurchasesSuccessCallback} success
  * @param {errorCallback} fail
+ * @param {getPurchasesProgressCallback=} progress
  */
-InAppBilling.prototype.getPurchases = function(success, fail) {
+InAppBilling.prototype.getPurchases = function(success, fail, progress) {
     this.log('getPurchases called!');
-    return cordova.exec(success, fail, "InAppBillingPlugin", "getPurchases", ["null"]);
+    return cordova.exec(collectPurchasePages(success, progress), fail, "InAppBillingPlugin", "getPurchases", ["null"]);
 };
 
 /**
@@ -253,7 +675,7 @@ InAppBilling.prototype.restore = function(success, fail) {
     this.log('restore called!');
 
     // TODO: replace this on iOS with getPurchases and then remove this
-    cordova.exec(success, fail, "InAppBillingPlugin", 'restoreCompletedTransactions', []);
+    cordova.exec(collectPurchasePages(success), fail, "InAppBillingPlugin", 'restoreCompletedTransactions', []);
 };
 
 /**
@@ -277,6 +699,77 @@ InAppBilling.prototype.consumeProduct = function(success, fail, productId) {
     return cordova.exec(success, fail, "InAppBillingPlugin", "consumeProduct", [productId]);
 };
 
+/**
+ * This is the callback for [consumeProducts]{@link module:InAppBilling#consumeProducts}, 
+ * it gets one result for each requested product, in the same order.
+ * 
+ * @callback consumeProductsSuccessCallback
+ * @param {Array.<{productId: string, consumed: Boolean, purchase: Purchase=, error: Object=}>} results
+ */
+
+/**
+ * Consume several items at once, like a stack of consumables after a restore. 
+ * The items are consumed in parallel and the result of each one is returned 
+ * together, consuming some items may succeed while others fail. Only available 
+ * on android.
+ * 
+ * @param {consumeProductsSuccessCallback} success callback with the result of each item
+ * @param {errorCallback} fail   callback for when the request as a whole failed
+ * @param {Array.<string>} productIds  ids of the already bought products (not the purchases themselves)
+ */
+InAppBilling.prototype.consumeProducts = function(success, fail, productIds) {
+    this.log('consumeProducts called!');
+
+    if (!(productIds instanceof Array) || productIds.length === 0) {
+        var msg = 'invalid productIds: ' + JSON.stringify(productIds);
+        this.log(msg);
+        fail({
+            errorCode: this.ERR_INVALID_PRODUCT_ID,
+            msg: msg,
+            nativeEvent: {}
+        });
+        return;
+    }
+
+    return cordova.exec(success, fail, "InAppBillingPlugin", "consumeProducts", [productIds]);
+};
+
+/**
+ * The success callback for [isOwned]{@link module:InAppBilling#isOwned}.
+ * 
+ * @callback isOwnedSuccessCallback
+ * @param {Boolean} owned
+ */
+
+/**
+ * Checks whether user owns a product, using the purchases known from this and 
+ * previous runs of the app. This is answered right away from device, even 
+ * before [init]{@link module:InAppBilling#init} has finished, so it is cheap 
+ * enough to be asked whenever needed. Call [getPurchases]{@link module:InAppBilling#getPurchases} 
+ * to bring the known purchases up to date. Only available on android.
+ * 
+ * @param {isOwnedSuccessCallback} success
+ * @param {errorCallback} fail
+ * @param {string} productId
+ */
+InAppBilling.prototype.isOwned = function(success, fail, productId) {
+    this.log('isOwned called!');
+    return cordova.exec(success, fail, "InAppBillingPlugin", "isOwned", [productId]);
+};
+
+/**
+ * Returns the purchases user owns, as known from this and previous runs of the 
+ * app. Like [isOwned]{@link module:InAppBilling#isOwned} this does not wait 
+ * for init or the store. Only available on android.
+ * 
+ * @param {getPurchasesSuccessCallback} success
+ * @param {errorCallback} fail
+ */
+InAppBilling.prototype.getEntitlements = function(success, fail) {
+    this.log('getEntitlements called!');
+    return cordova.exec(success, fail, "InAppBillingPlugin", "getEntitlements", []);
+};
+
 /* 
  TODO: sync this with final struc
  
@@ -319,7 +812,7 @@ InAppBilling.prototype.getLoadedProducts = function(success, fail) {
     this.log('getLoadedProducts called!');
 
     //TODO: implement this for iOS!
-    return cordova.exec(success, fail, "InAppBillingPlugin", "getLoadedProducts", ["null"]);
+    return cordova.exec(decodingList(success), fail, "InAppBillingPlugin", "getLoadedProducts", ["null"]);
 };
 
 /**
@@ -365,7 +858,7 @@ InAppBilling.prototype.loadProductDetails = function(success, fail, productIds)
         }
         this.log('load ' + JSON.stringify(productIds));
 
-        return cordova.exec(success, fail, "InAppBillingPlugin", "loadProductDetails", [productIds]);
+        return cordova.exec(decodingList(success), fail, "InAppBillingPlugin", "loadProductDetails", [productIds]);
     }
 };
 
@@ -0,0 +1,93 @@
+/*
+ * A local stand-in of a purchase verification server, for trying out the
+ * android-iabplugin-verification-url preference of the plugin without a real
+ * backend. It verifies the signatures with the public key of
+ * www/iab-fixture.json, so it fits the in-app stand-in of play store.
+ *
+ * usage: node tools/verification-server.js [port] [fixture]
+ *
+ * then, with the device connected over adb:
+ *     adb reverse tcp:8080 tcp:8080
+ * and in config.xml:
+ *     <preference name="android-iabplugin-verification-url" value="http://127.0.0.1:8080/verify" />
+ *
+ * It logs how many connections were opened for how many requests, with
+ * connections being reused the first should stay well below the second.
+ */
+var crypto = require('crypto');
+var fs = require('fs');
+var http = require('http');
+var path = require('path');
+
+var port = parseInt(process.argv[2] || '8080', 10);
+var fixture = process.argv[3] || path.join(__dirname, '..', 'www', 'iab-fixture.json');
+
+var base64Key = JSON.parse(fs.readFileSync(fixture, 'utf8')).publicKey;
+var publicKey = '-----BEGIN PUBLIC KEY-----\n'
+        + base64Key.match(/.{1,64}/g).join('\n')
+        + '\n-----END PUBLIC KEY-----\n';
+
+var connections = 0;
+var requests = 0;
+var purchases = 0;
+
+var verify = function(purchase) {
+    if (!purchase || !purchase.purchaseData || !purchase.signature) {
+        return false;
+    }
+
+    try {
+        return crypto.createVerify('RSA-SHA1')
+                .update(purchase.purchaseData, 'utf8')
+                .verify(publicKey, purchase.signature, 'base64');
+    }
+    catch (e) {
+        return false;
+    }
+};
+
+var server = http.createServer(function(req, res) {
+    if (req.method !== 'POST') {
+        res.writeHead(405);
+        res.end();
+        return;
+    }
+
+    var body = '';
+    req.setEncoding('utf8');
+    req.on('data', function(chunk) {
+        body += chunk;
+    });
+    req.on('end', function() {
+        var verdicts;
+        try {
+            verdicts = JSON.parse(body).purchases.map(verify);
+        }
+        catch (e) {
+            res.writeHead(400, {'Content-Type': 'text/plain'});
+            res.end(e.message);
+            return;
+        }
+
+        requests++;
+        purchases += verdicts.length;
+        console.log('verified ' + verdicts.length + ' purchases, '
+                + requests + ' requests on ' + connections + ' connections, '
+                + purchases + ' purchases in total');
+
+        var response = JSON.stringify({verdicts: verdicts});
+        res.writeHead(200, {
+            'Content-Type': 'application/json; charset=utf-8',
+            'Content-Length': Buffer.byteLength(response)
+        });
+        res.end(response);
+    });
+});
+
+server.on('connection', function() {
+    connections++;
+});
+
+server.listen(port, function() {
+    console.log('verification server listening on port ' + port);
+});
@@ -0,0 +1,183 @@
+/*
+ * Replays the usual sequence of billing calls an app makes and measures how
+ * long each one takes, as seen from JavaScript.
+ *
+ * Meant to be run against the in-app stand-in of play store, see the
+ * android-iabplugin-fake-service preference in config.xml, so the numbers do
+ * not depend on store or network. The product IDs match www/iab-fixture.json.
+ */
+var benchmark = {
+    iterations: 20,
+    productIds: (function() {
+        var ids = [];
+        for (var i = 1; i <= 40; i++) {
+            ids.push('test_product_' + i);
+        }
+        for (var j = 1; j <= 10; j++) {
+            ids.push('test_subscription_' + j);
+        }
+        return ids;
+    })(),
+    consumableId: 'test_product_1',
+    // one step of the sequence, calls next when done
+    steps: [
+        {
+            name: 'init',
+            run: function(next, fail) {
+                inappbilling.init(next, fail, {showLog: false}, benchmark.productIds);
+            }
+        },
+        {
+            name: 'restore',
+            run: function(next, fail) {
+                inappbilling.getPurchases(next, fail);
+            }
+        },
+        {
+            name: 'loadProductDetails',
+            run: function(next, fail) {
+                inappbilling.loadProductDetails(next, fail, benchmark.productIds);
+            }
+        },
+        {
+            name: 'buy',
+            run: function(next, fail) {
+                inappbilling.buy(next, fail, benchmark.consumableId);
+            }
+        },
+        {
+            name: 'consume',
+            run: function(next, fail) {
+                inappbilling.consumeProduct(next, fail, benchmark.consumableId);
+            }
+        }
+    ],
+    run: function() {
+        var times = {};
+        var iteration = 0;
+        var step = 0;
+
+        app.log('benchmark started, iterations: ' + benchmark.iterations);
+
+        var runStep = function() {
+            if (step === benchmark.steps.length) {
+                step = 0;
+                iteration++;
+            }
+            if (iteration === benchmark.iterations) {
+                benchmark.report(times);
+                return;
+            }
+
+            var current = benchmark.steps[step];
+            var start = Date.now();
+
+            current.run(
+                    function() {
+                        (times[current.name] || (times[current.name] = [])).push(Date.now() - start);
+                        step++;
+                        runStep();
+                    },
+                    function(err) {
+                        app.log('benchmark failed at ' + current.name + ' in iteration ' + iteration, err);
+                    }
+            );
+        };
+
+        runStep();
+    },
+    bulkProductIds: (function() {
+        var ids = [];
+        for (var i = 1; i <= 500; i++) {
+            ids.push('bulk_product_' + i);
+        }
+        return ids;
+    })(),
+    /*
+     * Loads the 500 generated products of the fixture, once as JSON and once 
+     * in binary form, and compares how long getting them takes and how large 
+     * the result is.
+     */
+    compareFormats: function() {
+        var formats = [false, true];
+        var result = {};
+
+        var measure = function(binary, done) {
+            var times = [];
+
+            var getProducts = function() {
+                var start = Date.now();
+
+                inappbilling.getLoadedProducts(function(products) {
+                    times.push(Date.now() - start);
+
+                    if (products.length !== benchmark.bulkProductIds.length) {
+                        app.log('benchmark got ' + products.length + ' products');
+                    }
+                    if (times.length === benchmark.iterations) {
+                        getSize();
+                    }
+                    else {
+                        getProducts();
+                    }
+                }, fail);
+            };
+
+            // straight to native side, to see the size of what it sends
+            var getSize = function() {
+                cordova.exec(function(raw) {
+                    done(times, binary ? raw.byteLength : JSON.stringify(raw).length);
+                }, fail, "InAppBillingPlugin", "getLoadedProducts", ["null"]);
+            };
+
+            inappbilling.init(getProducts, fail, {showLog: false, binaryResults: binary}, benchmark.bulkProductIds);
+        };
+
+        var fail = function(err) {
+            app.log('benchmark of formats failed', err);
+        };
+
+        var next = function() {
+            if (formats.length === 0) {
+                app.log('benchmark of formats done, times of getLoadedProducts in ms, size in bytes', result);
+                return;
+            }
+
+            var binary = formats.shift();
+            measure(binary, function(times, size) {
+                var sorted = times.slice().sort(function(a, b) {
+                    return a - b;
+                });
+
+                result[binary ? 'binary' : 'json'] = {
+                    size: size,
+                    min: sorted[0],
+                    median: sorted[Math.floor(sorted.length / 2)],
+                    max: sorted[sorted.length - 1]
+                };
+                next();
+            });
+        };
+
+        app.log('benchmark of formats started, products: ' + benchmark.bulkProductIds.length);
+        next();
+    },
+    report: function(times) {
+        var result = {};
+
+        for (var name in times) {
+            var sorted = times[name].slice().sort(function(a, b) {
+                return a - b;
+            });
+
+            result[name] = {
+                min: sorted[0],
+                median: sorted[Math.floor(sorted.length / 2)],
+                p95: sorted[Math.min(sorted.length - 1, Math.floor(sorted.length * 0.95))],
+                max: sorted[sorted.length - 1]
+            };
+        }
+
+        app.log('benchmark done, times in ms', result);
+    }
+};